@@ -0,0 +1,91 @@
+package wiresegal.fabled.jmh;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.minecraft.init.Bootstrap;
+import wiresegal.fabled.EnumTraitLevel;
+import wiresegal.fabled.TraitGenerator;
+import wiresegal.fabled.TraitManager;
+import wiresegal.fabled.config.ModConfig;
+import wiresegal.fabled.config.Trait;
+
+import java.io.InputStreamReader;
+
+/**
+ * Shared setup for the benchmarks, which run outside of a game instance.
+ */
+public final class BenchmarkSetup {
+    private static boolean bootstrapped = false;
+
+    public static synchronized void bootstrap() {
+        if (!bootstrapped) {
+            Bootstrap.register();
+            bootstrapped = true;
+        }
+
+        ModConfig.canReceiveTraits = (item) -> true;
+        ModConfig.traitsFromLootOnly = false;
+        ModConfig.weightOfNone = 0.9;
+        ModConfig.weightOfUncommon = 100;
+        ModConfig.weightOfRare = 75;
+        ModConfig.weightOfEpic = 50;
+        ModConfig.weightOfLegendary = 25;
+    }
+
+    public static JsonArray defaultTraits() {
+        return new JsonParser().parse(new InputStreamReader(
+                BenchmarkSetup.class.getResourceAsStream("/assets/fabledworks/default_traits.json"))).getAsJsonArray();
+    }
+
+    /**
+     * Builds a config with the given number of traits. Every fifth trait conflicts with the one before it.
+     */
+    public static JsonArray syntheticTraits(int count) {
+        JsonArray traits = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            JsonObject trait = new JsonObject();
+            trait.addProperty("Name", "trait" + i);
+            trait.addProperty("Default Text", "Trait " + i);
+            trait.addProperty("Weight", 50 + (i % 4) * 25);
+
+            if (i % 5 == 4) {
+                JsonArray conflicts = new JsonArray();
+                conflicts.add("trait" + (i - 1));
+                trait.add("Conflicts", conflicts);
+            }
+
+            JsonObject mainHand = new JsonObject();
+            JsonObject knockback = new JsonObject();
+            for (EnumTraitLevel level : EnumTraitLevel.LEVELS) {
+                JsonObject modifier = new JsonObject();
+                modifier.addProperty(i % 2 == 0 ? "Add" : "Multiply", 1 + level.ordinal() * 0.25);
+                mainHand.add(level.getJsonKey(), modifier);
+                knockback.addProperty(level.getJsonKey(), 1 + level.ordinal() * 0.05);
+            }
+            JsonObject damage = new JsonObject();
+            damage.add("Main Hand", mainHand);
+            JsonObject attributes = new JsonObject();
+            attributes.add("generic.attackDamage", damage);
+            trait.add("Attributes", attributes);
+            trait.add("Knockback", knockback);
+
+            traits.add(trait);
+        }
+        return traits;
+    }
+
+    public static void registerTraits(JsonArray traits) {
+        TraitManager.purgeAllTraits();
+        TraitGenerator.invalidateTraitPool();
+
+        for (JsonElement traitEl : traits) {
+            if (traitEl.isJsonObject()) {
+                Trait trait = Trait.loadFromJson(traitEl.getAsJsonObject());
+                if (trait != null)
+                    TraitManager.registerTrait(trait);
+            }
+        }
+    }
+}
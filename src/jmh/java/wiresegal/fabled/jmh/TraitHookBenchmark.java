@@ -0,0 +1,57 @@
+package wiresegal.fabled.jmh;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import net.minecraft.entity.ai.attributes.AttributeModifier;
+import net.minecraft.init.Items;
+import net.minecraft.inventory.EntityEquipmentSlot;
+import net.minecraft.item.ItemStack;
+import org.openjdk.jmh.annotations.*;
+import wiresegal.fabled.EnumTraitLevel;
+import wiresegal.fabled.FabledWorks;
+import wiresegal.fabled.TraitManager;
+import wiresegal.fabled.config.Trait;
+
+import java.util.List;
+import java.util.Random;
+
+@State(Scope.Benchmark)
+public class TraitHookBenchmark {
+    private ItemStack stack;
+    private Multimap<String, AttributeModifier> baseAttributes;
+    private Multimap<String, AttributeModifier> attributes;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        BenchmarkSetup.bootstrap();
+        BenchmarkSetup.registerTraits(BenchmarkSetup.syntheticTraits(16));
+
+        stack = new ItemStack(Items.DIAMOND_SWORD);
+        TraitManager.setLevel(stack, "trait0", EnumTraitLevel.LEGENDARY);
+        TraitManager.setLevel(stack, "trait1", EnumTraitLevel.EPIC);
+        TraitManager.setLevel(stack, "trait2", EnumTraitLevel.UNCOMMON);
+
+        baseAttributes = HashMultimap.create(stack.getItem().getAttributeModifiers(EntityEquipmentSlot.MAINHAND, stack));
+        attributes = HashMultimap.create();
+        random = new Random(0);
+    }
+
+    @Benchmark
+    public List<Trait> allTraitsOnStack() {
+        return TraitManager.allTraitsOnStack(stack);
+    }
+
+    @Benchmark
+    public Multimap<String, AttributeModifier> applyAllModifiers() {
+        attributes.clear();
+        attributes.putAll(baseAttributes);
+        FabledWorks.applyAllModifiers(stack, EntityEquipmentSlot.MAINHAND, attributes);
+        return attributes;
+    }
+
+    @Benchmark
+    public boolean preventDamage() {
+        return FabledWorks.preventDamage(stack, random);
+    }
+}
@@ -0,0 +1,27 @@
+package wiresegal.fabled.jmh;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import wiresegal.fabled.config.Trait;
+
+@State(Scope.Benchmark)
+public class TraitLoadBenchmark {
+    @Param({ "default", "64" })
+    public String traits;
+
+    private JsonArray config;
+
+    @Setup
+    public void setup() {
+        BenchmarkSetup.bootstrap();
+        config = traits.equals("default") ? BenchmarkSetup.defaultTraits() : BenchmarkSetup.syntheticTraits(Integer.parseInt(traits));
+    }
+
+    @Benchmark
+    public void loadFromJson(Blackhole blackhole) {
+        for (JsonElement trait : config)
+            blackhole.consume(Trait.loadFromJson(trait.getAsJsonObject()));
+    }
+}
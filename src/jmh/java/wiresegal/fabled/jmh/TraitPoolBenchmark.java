@@ -0,0 +1,43 @@
+package wiresegal.fabled.jmh;
+
+import net.minecraft.init.Items;
+import net.minecraft.item.ItemStack;
+import org.openjdk.jmh.annotations.*;
+import wiresegal.fabled.TraitGenerator;
+import wiresegal.fabled.TraitSampler;
+
+import java.util.Random;
+
+@State(Scope.Benchmark)
+public class TraitPoolBenchmark {
+    @Param({ "8", "32", "64", "128" })
+    public int traitCount;
+
+    private TraitSampler sampler;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        BenchmarkSetup.bootstrap();
+        BenchmarkSetup.registerTraits(BenchmarkSetup.syntheticTraits(traitCount));
+        sampler = new TraitSampler();
+        random = new Random(0);
+    }
+
+    @Benchmark
+    public TraitSampler createTraitPool() {
+        return new TraitSampler();
+    }
+
+    @Benchmark
+    public long sample() {
+        return sampler.sample(random, true);
+    }
+
+    @Benchmark
+    public ItemStack rollTraits() {
+        ItemStack stack = new ItemStack(Items.DIAMOND_SWORD);
+        TraitGenerator.rollTraits(stack, random, true);
+        return stack;
+    }
+}
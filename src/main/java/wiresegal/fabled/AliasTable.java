@@ -0,0 +1,80 @@
+package wiresegal.fabled;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Vose alias table, drawn from in constant time.
+ */
+public final class AliasTable {
+    @Nonnull
+    private final double[] probability;
+    @Nonnull
+    private final int[] alias;
+
+    private final double totalWeight;
+
+    public AliasTable(@Nonnull long[] weights) {
+        int size = weights.length;
+        this.probability = new double[size];
+        this.alias = new int[size];
+
+        double total = 0;
+        int heaviest = 0;
+        for (int i = 0; i < size; i++) {
+            total += weights[i];
+            if (weights[i] > weights[heaviest])
+                heaviest = i;
+        }
+        this.totalWeight = total;
+
+        if (total <= 0)
+            return;
+
+        double[] scaled = new double[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int smallCount = 0;
+        int largeCount = 0;
+
+        for (int i = 0; i < size; i++) {
+            scaled[i] = weights[i] * size / total;
+            if (scaled[i] < 1)
+                small[smallCount++] = i;
+            else
+                large[largeCount++] = i;
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+
+            probability[less] = scaled[less];
+            alias[less] = more;
+
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1)
+                small[smallCount++] = more;
+            else
+                large[largeCount++] = more;
+        }
+
+        // Whatever is left over is only off from 1 by rounding error
+        while (largeCount > 0)
+            probability[large[--largeCount]] = 1;
+        while (smallCount > 0) {
+            int less = small[--smallCount];
+            probability[less] = weights[less] > 0 ? 1 : 0;
+            alias[less] = heaviest;
+        }
+    }
+
+    public boolean isEmpty() {
+        return totalWeight <= 0;
+    }
+
+    public int sample(@Nonnull Random random) {
+        int column = random.nextInt(probability.length);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
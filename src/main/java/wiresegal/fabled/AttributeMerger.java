@@ -0,0 +1,129 @@
+package wiresegal.fabled;
+
+import com.google.common.collect.Multimap;
+import net.minecraft.entity.ai.attributes.AttributeModifier;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reusable accumulator for trait attribute modifiers.
+ */
+public final class AttributeMerger {
+    private static final int ADD = 0;
+    private static final int MULTIPLY = 1;
+    private static final int EXPONENTIAL = 2;
+
+    private String[] keys = new String[4];
+    private double[] multipliers = new double[4];
+    private AttributeModifier[] merged = new AttributeModifier[4];
+    private int keyCount = 0;
+
+    private int[] entryKeys = new int[8];
+    private AttributeModifier[] entries = new AttributeModifier[8];
+    private int entryCount = 0;
+
+    public AttributeMerger() {
+        // NO-OP
+    }
+
+    public AttributeMerger(@Nonnull Multimap<String, AttributeModifier> modifiers) {
+        for (Map.Entry<String, AttributeModifier> entry : modifiers.entries())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    public boolean isEmpty() {
+        return entryCount == 0;
+    }
+
+    public void clear() {
+        keyCount = 0;
+        entryCount = 0;
+    }
+
+    private int indexOf(@Nonnull String key) {
+        for (int i = 0; i < keyCount; i++)
+            if (keys[i].equals(key))
+                return i;
+        return -1;
+    }
+
+    public void put(@Nonnull String key, @Nonnull AttributeModifier modifier) {
+        int index = indexOf(key);
+        if (index < 0) {
+            if (keyCount == keys.length) {
+                keys = Arrays.copyOf(keys, keyCount * 2);
+                multipliers = Arrays.copyOf(multipliers, keyCount * 2);
+                merged = Arrays.copyOf(merged, keyCount * 2);
+            }
+            keys[keyCount] = key;
+            multipliers[keyCount] = 0;
+            index = keyCount++;
+        }
+
+        if (modifier.getOperation() == MULTIPLY)
+            multipliers[index] += modifier.getAmount();
+
+        if (entryCount == entries.length) {
+            entryKeys = Arrays.copyOf(entryKeys, entryCount * 2);
+            entries = Arrays.copyOf(entries, entryCount * 2);
+        }
+        entryKeys[entryCount] = index;
+        entries[entryCount++] = modifier;
+    }
+
+    public void putAll(@Nonnull AttributeMerger other) {
+        for (int i = 0; i < other.entryCount; i++)
+            put(other.keys[other.entryKeys[i]], other.entries[i]);
+    }
+
+    public void apply(@Nonnull Multimap<String, AttributeModifier> attributes) {
+        for (int key = 0; key < keyCount; key++) {
+            String name = keys[key];
+
+            Collection<AttributeModifier> present = null;
+            AttributeModifier base = null;
+            if (attributes.containsKey(name)) {
+                present = attributes.get(name);
+                if (present.size() == 1) {
+                    AttributeModifier first = present.iterator().next();
+                    if (first.getOperation() == ADD)
+                        base = first;
+                }
+            }
+
+            if (base == null) {
+                for (int i = 0; i < entryCount; i++)
+                    if (entryKeys[i] == key)
+                        attributes.put(name, entries[i]);
+            } else {
+                double amount = base.getAmount();
+                for (int i = 0; i < entryCount; i++)
+                    if (entryKeys[i] == key && entries[i].getOperation() == ADD)
+                        amount += entries[i].getAmount();
+
+                amount *= 1 + multipliers[key];
+
+                for (int i = 0; i < entryCount; i++)
+                    if (entryKeys[i] == key && entries[i].getOperation() == EXPONENTIAL)
+                        amount *= 1 + entries[i].getAmount();
+
+                present.clear();
+                attributes.put(name, mergedModifier(key, base, amount));
+            }
+        }
+    }
+
+    // Shared profiles call this from any thread; a race only means an extra modifier, as modifiers are immutable
+    @Nonnull
+    private AttributeModifier mergedModifier(int key, @Nonnull AttributeModifier base, double amount) {
+        AttributeModifier last = merged[key];
+        if (last != null && last.getAmount() == amount &&
+                last.getID().equals(base.getID()) && last.getName().equals(base.getName()))
+            return last;
+
+        return merged[key] = new AttributeModifier(base.getID(), base.getName(), amount, ADD);
+    }
+}
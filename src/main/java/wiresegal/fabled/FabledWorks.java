@@ -7,26 +7,35 @@ import net.minecraft.entity.ai.attributes.AttributeModifier;
 import net.minecraft.inventory.EntityEquipmentSlot;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.DamageSource;
+import net.minecraftforge.event.AttachCapabilitiesEvent;
 import net.minecraftforge.event.entity.living.LivingAttackEvent;
 import net.minecraftforge.event.entity.living.LivingHurtEvent;
 import net.minecraftforge.event.entity.living.LivingKnockBackEvent;
 import net.minecraftforge.event.entity.player.ItemTooltipEvent;
 import net.minecraftforge.fml.client.event.ConfigChangedEvent;
+import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLLoadCompleteEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerStartedEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppedEvent;
 import net.minecraftforge.fml.common.eventhandler.EventPriority;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
+import wiresegal.fabled.capability.TraitHolder;
+import wiresegal.fabled.config.ConfigWatcher;
 import wiresegal.fabled.config.ModConfig;
-import wiresegal.fabled.config.Trait;
 import wiresegal.fabled.wrappers.DamageSourcePenetrating;
 
-import java.util.Collection;
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-import java.util.Set;
 
 import static wiresegal.fabled.FabledWorks.FABLED;
 
@@ -43,37 +52,23 @@ public class FabledWorks {
     @SubscribeEvent(priority = EventPriority.HIGH)
     public static void editTooltips(ItemTooltipEvent event) {
         List<String> tooltip = event.getToolTip();
-        ItemStack stack = event.getItemStack();
+        TraitProfile profile = TraitManager.getProfile(event.getItemStack());
 
-        List<String> inject = Lists.newArrayList();
-        List<Trait> traits = TraitManager.allTraitsOnStack(stack);
-        EnumTraitLevel traitLevel = EnumTraitLevel.NULL;
+        if (!profile.isEmpty()) {
+            List<String> inject = TraitTooltips.getLines(profile);
+            boolean spaced = tooltip.size() > 1 && !tooltip.get(1).isEmpty();
 
-        boolean any = true;
-
-        for (EnumTraitLevel level : EnumTraitLevel.LEVELS_DOWN) {
-            for (Trait trait : traits) {
-                if (TraitManager.getLevel(stack, trait) == level) {
-                    inject.add(level.getLocalizedText(trait, any));
-                    any = false;
-                    if (level.compareTo(traitLevel) > 0)
-                        traitLevel = level;
-                }
-            }
-        }
-
-        if (traitLevel != EnumTraitLevel.NULL) {
-            tooltip.set(0, traitLevel.getColor() + tooltip.get(0));
-
-            if (tooltip.size() > 1 && !tooltip.get(1).isEmpty())
-                inject.add("");
+            tooltip.set(0, profile.getLevel(0).getColor() + tooltip.get(0));
             tooltip.addAll(1, inject);
+            if (spaced)
+                tooltip.add(1 + inject.size(), "");
         }
     }
 
-    private static EntityLivingBase attacking;
-    private static DamageSource attackingWith;
-    private static float subtract;
+    private static final int MAX_PENETRATIONS_IN_FLIGHT = 64;
+
+    // Attacks whose hurt event still needs the penetrated share taken off. Newest first.
+    private static final ThreadLocal<Deque<PenetrationContext>> PENETRATIONS = ThreadLocal.withInitial(ArrayDeque::new);
 
     @SubscribeEvent(priority = EventPriority.LOWEST)
     public static void penetrationDamage(LivingAttackEvent event) {
@@ -85,48 +80,91 @@ public class FabledWorks {
 
             if (stack.isEmpty()) return;
 
-            List<Trait> traits = TraitManager.allTraitsOnStack(stack);
+            TraitProfile profile = TraitManager.getProfile(stack);
 
-            if (traits.isEmpty()) return;
+            if (profile.isEmpty()) return;
 
-            double penetratingAmount = 0f;
-
-            for (Trait trait : traits)
-                penetratingAmount = trait.modifyWithPenetrationMultiplier(stack, penetratingAmount);
-
-            penetratingAmount = Math.min(1f, penetratingAmount);
+            double penetratingAmount = profile.getPenetration();
 
             if (penetratingAmount > 0) {
                 DamageSource bypass = new DamageSourcePenetrating(source);
 
-                attacking = target;
-                attackingWith = source;
-                subtract = (float) penetratingAmount;
+                float subtract = (float) penetratingAmount;
                 int resistanceTime = target.hurtResistantTime;
                 target.attackEntityFrom(bypass, event.getAmount() * subtract);
 
                 if (penetratingAmount == 1)
                     event.setCanceled(true);
-                else
+                else {
                     target.hurtResistantTime = resistanceTime;
+
+                    Deque<PenetrationContext> inFlight = PENETRATIONS.get();
+                    if (inFlight.size() >= MAX_PENETRATIONS_IN_FLIGHT)
+                        inFlight.removeLast();
+                    inFlight.push(new PenetrationContext(target, source, subtract));
+                }
             }
 
-            if (!aggressor.world.isRemote) for (Trait trait : traits)
-                trait.hitEntity(stack, aggressor);
+            if (!aggressor.world.isRemote)
+                profile.hitEntity(aggressor);
         }
     }
 
     @SubscribeEvent(priority = EventPriority.HIGHEST)
     public static void decreaseDamageForPenetration(LivingHurtEvent event) {
-        if (event.getEntityLiving() == attacking && event.getSource() == attackingWith) {
-            event.setAmount(event.getAmount() * (1 - subtract));
+        Deque<PenetrationContext> inFlight = PENETRATIONS.get();
+        if (inFlight.isEmpty()) return;
+
+        Iterator<PenetrationContext> contexts = inFlight.iterator();
+        while (contexts.hasNext()) {
+            PenetrationContext context = contexts.next();
+            if (context.target == event.getEntityLiving() && context.source == event.getSource()) {
+                event.setAmount(event.getAmount() * (1 - context.subtract));
+                contexts.remove();
+                return;
+            }
+        }
+    }
 
-            attacking = null;
-            attackingWith = null;
-            subtract = 0f;
+    @SubscribeEvent
+    public static void clearStalePenetrations(TickEvent.WorldTickEvent event) {
+        // Attacks that got blocked or cancelled after penetrating never fire their hurt event.
+        if (event.phase == TickEvent.Phase.END)
+            PENETRATIONS.get().clear();
+    }
+
+    private static class PenetrationContext {
+        @Nonnull
+        private final EntityLivingBase target;
+        @Nonnull
+        private final DamageSource source;
+        private final float subtract;
+
+        private PenetrationContext(@Nonnull EntityLivingBase target, @Nonnull DamageSource source, float subtract) {
+            this.target = target;
+            this.source = source;
+            this.subtract = subtract;
         }
     }
 
+    @SubscribeEvent
+    public static void applyReloadedConfig(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START)
+            ConfigWatcher.applyPending();
+    }
+
+    @SubscribeEvent
+    public static void processQueuedRolls(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END)
+            TraitRollQueue.process();
+    }
+
+    @SubscribeEvent
+    public static void flushHitCommands(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END)
+            TraitCommandScheduler.flush();
+    }
+
     @SubscribeEvent
     public static void knockbackMultiplier(LivingKnockBackEvent event) {
         Entity attacker = event.getAttacker();
@@ -135,28 +173,35 @@ public class FabledWorks {
 
             if (stack.isEmpty()) return;
 
-            List<Trait> traits = TraitManager.allTraitsOnStack(stack);
-
-            if (traits.isEmpty()) return;
-
-            double knockbackMultiplier = 1;
+            TraitProfile profile = TraitManager.getProfile(stack);
 
-            for (Trait trait : traits)
-                knockbackMultiplier = trait.getKnockbackMultiplier(stack, knockbackMultiplier);
+            if (profile.isEmpty()) return;
 
-            event.setStrength(event.getStrength() * (float) knockbackMultiplier);
+            event.setStrength(event.getStrength() * (float) profile.getKnockbackMultiplier());
         }
     }
 
+    @SubscribeEvent
+    public static void attachTraitHolder(AttachCapabilitiesEvent<ItemStack> event) {
+        ItemStack stack = event.getObject();
+        if (stack.getItem().isDamageable())
+            event.addCapability(TraitHolder.KEY, new TraitHolder());
+    }
+
     @SubscribeEvent
     public static void configReload(ConfigChangedEvent.OnConfigChangedEvent event) {
-        if (event.getModID().equals(FABLED))
-            ModConfig.init();
+        if (event.getModID().equals(FABLED)) {
+            // A reload keeps the current config if the file can't be read, rather than setting it aside
+            ModConfig.LoadedConfig loaded = ModConfig.loadInBackground();
+            if (loaded != null)
+                ModConfig.apply(loaded);
+        }
     }
 
     @Mod.EventHandler
     public void preInit(FMLPreInitializationEvent event) {
         ModConfig.injectConfigFile(event.getSuggestedConfigurationFile());
+        TraitHolder.register();
     }
 
     @Mod.EventHandler
@@ -164,69 +209,35 @@ public class FabledWorks {
         ModConfig.init();
     }
 
-    // All ASM methods
-
-    private static double chance = 0;
-
-    public static boolean preventDamage(ItemStack stack, boolean newIndex, Random random) {
-        if (newIndex) {
-            List<Trait> traits = TraitManager.allTraitsOnStack(stack);
-
-            if (traits.isEmpty()) {
-                chance = 0;
-                return false;
-            }
+    @Mod.EventHandler
+    public void loadComplete(FMLLoadCompleteEvent event) {
+        TraitGenerator.prewarmTraitPool();
+    }
 
-            double newChance = 1f;
+    @Mod.EventHandler
+    public void serverStarted(FMLServerStartedEvent event) {
+        TraitManager.compileCommands(FMLCommonHandler.instance().getMinecraftServerInstance());
+        if (ModConfig.reloadOnChange && ModConfig.getConfigFile() != null)
+            ConfigWatcher.start(ModConfig.getConfigFile());
+    }
 
-            for (Trait trait : traits)
-                newChance = trait.chanceToBreak(stack, newChance);
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent event) {
+        TraitRollQueue.clear();
+        TraitCommandScheduler.clear();
+        ConfigWatcher.stop();
+    }
 
-            chance = newChance;
-        }
+    // All ASM methods
 
+    public static boolean preventDamage(ItemStack stack, Random random) {
+        // The profile is cached on the stack, so there's no need to carry the chance between calls.
+        double chance = TraitManager.getProfile(stack).getChanceToBreak();
         return chance != 0 && random.nextDouble() > chance;
     }
 
 
     public static void applyAllModifiers(ItemStack stack, EntityEquipmentSlot slot, Multimap<String, AttributeModifier> attributes) {
-        List<Trait> traits = TraitManager.allTraitsOnStack(stack);
-
-        Multimap<String, AttributeModifier> modifiers = HashMultimap.create();
-
-        for (Trait trait : traits)
-            trait.applyAttributes(stack, modifiers, slot);
-
-        Set<String> keys = ImmutableSet.copyOf(modifiers.keySet());
-
-        for (String key : keys) {
-            if (attributes.containsKey(key)) {
-                Collection<AttributeModifier> theModifiers = attributes.get(key);
-                if (theModifiers.size() == 1) {
-                    AttributeModifier first = theModifiers.iterator().next();
-                    if (first.getOperation() == 0) {
-                        double amount = first.getAmount();
-                        for (AttributeModifier mod : modifiers.get(key))
-                            if (mod.getOperation() == 0)
-                                amount += mod.getAmount();
-
-                        double multiplier = 0;
-
-                        for (AttributeModifier mod : modifiers.get(key))
-                            if (mod.getOperation() == 1)
-                                multiplier += mod.getAmount();
-
-                        amount *= (1 + multiplier);
-
-                        for (AttributeModifier mod : modifiers.get(key))
-                            if (mod.getOperation() == 2)
-                                amount *= 1 + mod.getAmount();
-
-                        attributes.removeAll(key);
-                        attributes.put(key, new AttributeModifier(first.getID(), first.getName(), amount, 0));
-                    } else attributes.putAll(key, modifiers.get(key));
-                } else attributes.putAll(key, modifiers.get(key));
-            } else attributes.putAll(key, modifiers.get(key));
-        }
+        TraitManager.getProfile(stack).applyAttributes(slot, attributes);
     }
 }
@@ -0,0 +1,120 @@
+package wiresegal.fabled;
+
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraftforge.fml.common.FMLLog;
+import wiresegal.fabled.config.ModConfig;
+import wiresegal.fabled.config.TraitAtLevel;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs trait hit commands at the end of the server tick, at most once per attacker and command.
+ */
+public final class TraitCommandScheduler {
+    // Filled from any world's tick, in order, with the set keeping out duplicates
+    private static final Queue<PendingCommand> PENDING = new ConcurrentLinkedQueue<>();
+    private static final Set<PendingCommand> PENDING_SET = ConcurrentHashMap.newKeySet();
+    // Only touched while holding the class lock
+    private static final Map<EntityLivingBase, Map<TraitAtLevel, Long>> LAST_RUN = new WeakHashMap<>();
+
+    private static long tick = 0;
+
+    // How often the counts are logged, for tuning the cooldown
+    private static final long REPORT_TICKS = 20 * 60 * 5;
+
+    private static final AtomicLong executed = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+
+    public static void schedule(@Nonnull EntityLivingBase attacker, @Nonnull TraitAtLevel command) {
+        if (attacker.world.isRemote)
+            return;
+
+        PendingCommand pending = new PendingCommand(attacker, command);
+        if (PENDING_SET.add(pending))
+            PENDING.add(pending);
+        else
+            skipped.incrementAndGet();
+    }
+
+    public static synchronized void flush() {
+        tick++;
+
+        PendingCommand pending;
+        while ((pending = PENDING.poll()) != null) {
+            PENDING_SET.remove(pending);
+
+            // Died since the hit, so there's nobody left to run it as
+            if (!pending.attacker.isEntityAlive()) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            Map<TraitAtLevel, Long> lastRuns = LAST_RUN.computeIfAbsent(pending.attacker, (attacker) -> new IdentityHashMap<>());
+            Long lastRun = lastRuns.get(pending.command);
+
+            if (lastRun != null && tick - lastRun <= ModConfig.commandCooldown) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            lastRuns.put(pending.command, tick);
+            pending.command.hitEntity(pending.attacker);
+            executed.incrementAndGet();
+        }
+
+        if (tick % REPORT_TICKS == 0)
+            FMLLog.log.debug("Trait hit commands so far: {} run, {} skipped.", executed.get(), skipped.get());
+    }
+
+    /**
+     * Drops everything queued and every cooldown. Called when traits are reloaded, as both hold on to the old ones.
+     */
+    public static synchronized void clear() {
+        PENDING.clear();
+        PENDING_SET.clear();
+        LAST_RUN.clear();
+    }
+
+    /**
+     * @return How many hit commands have run since the game started.
+     */
+    public static long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return How many hit commands were dropped, as duplicates within a tick, for being on cooldown, or for a dead attacker.
+     */
+    public static long getSkippedCount() {
+        return skipped.get();
+    }
+
+    private static class PendingCommand {
+        @Nonnull
+        private final EntityLivingBase attacker;
+        @Nonnull
+        private final TraitAtLevel command;
+
+        private PendingCommand(@Nonnull EntityLivingBase attacker, @Nonnull TraitAtLevel command) {
+            this.attacker = attacker;
+            this.command = command;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PendingCommand))
+                return false;
+            PendingCommand other = (PendingCommand) obj;
+            return attacker == other.attacker && command == other.command;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(attacker) * 31 + System.identityHashCode(command);
+        }
+    }
+}
@@ -1,19 +1,16 @@
 package wiresegal.fabled;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import net.minecraft.item.ItemStack;
-import net.minecraft.util.WeightedRandom;
+import net.minecraftforge.fml.common.FMLLog;
 import wiresegal.fabled.config.ModConfig;
 import wiresegal.fabled.config.Trait;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.List;
-import java.util.Objects;
+import java.io.File;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author WireSegal
@@ -21,282 +18,185 @@ import java.util.Set;
  */
 public class TraitGenerator {
     public static void rollTraits(ItemStack stack, Random random, boolean fromLoot) {
-        if ((fromLoot || !ModConfig.traitsFromLootOnly) && ModConfig.canReceiveTraits.test(stack.getItem())) {
-            List<TraitRoll> rolls = getTraitPool();
-            int totalWeight = WeightedRandom.getTotalWeight(rolls);
-            if (fromLoot)
-                totalWeight -= poolSize / 2;
-            TraitRoll rolled = WeightedRandom.getRandomItem(random, rolls, totalWeight);
-            rolled.apply(stack);
+        if (rollsFrom(fromLoot) && ModConfig.canReceiveTraits.test(stack.getItem())) {
+            TraitSampler pool = getTraitPool();
+            applyRoll(stack, pool, pool.sample(random, fromLoot));
         }
     }
 
+    /**
+     * @return Whether traits are rolled for stacks from loot, or for every other stack.
+     */
+    public static boolean rollsFrom(boolean fromLoot) {
+        return fromLoot || !ModConfig.traitsFromLootOnly;
+    }
 
-    public static void invalidateTraitPool() {
+    private static final ExecutorService POOL_BUILDER = Executors.newSingleThreadExecutor((task) -> {
+        Thread thread = new Thread(task, "Fabled Works Trait Pool Builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile TraitSampler traitPool = null;
+    private static volatile Future<TraitSampler> pendingPool = null;
+    // Bumped by every rebuild and invalidation, so a build that has been superseded is thrown away
+    private static final AtomicInteger poolRequests = new AtomicInteger();
+
+    // Synchronized with publishing, so a build that finishes alongside this can't put its pool back afterwards
+    public static synchronized void invalidateTraitPool() {
+        poolRequests.incrementAndGet();
+        pendingPool = null;
         traitPool = null;
     }
 
-    private static List<TraitRoll> traitPool = null;
-    private static int poolSize = 0;
-
-    @Nonnull
-    private static List<TraitRoll> getTraitPool() {
-        if (traitPool == null)
-            return traitPool = createTraitPool();
-        return traitPool;
+    /**
+     * Builds a new pool from the current traits in the background. The old pool keeps serving rolls until it's done.
+     * If only a few traits changed since the old pool was built, it's patched instead of rebuilt.
+     */
+    public static void rebuildTraitPool() {
+        rebuildTraitPool(null, null);
     }
 
-    @Nonnull
-    private static List<TraitRoll> createTraitPool() {
-        Set<TraitRoll> traits = Sets.newHashSet();
-
-        for (Trait trait : TraitManager.getAllTraits())
-            for (EnumTraitLevel level : EnumTraitLevel.LEVELS)
-                addAllForPrimary(traits, new LeveledTrait(trait, level));
-
-        List<TraitRoll> pool = Lists.newArrayList(traits);
+    /**
+     * As {@link #rebuildTraitPool()}, but reads the pool from the cache file if it was written for the same key,
+     * and writes it there otherwise.
+     */
+    public static void rebuildTraitPool(@Nullable File cacheFile, @Nullable byte[] cacheKey) {
+        TraitSampler.Snapshot snapshot = new TraitSampler.Snapshot();
+        int request = poolRequests.incrementAndGet();
+
+        FutureTask<TraitSampler> task = new FutureTask<>(() -> {
+            TraitSampler pool = null;
+            if (cacheFile != null && cacheKey != null)
+                pool = TraitPoolCache.read(cacheFile, cacheKey, snapshot);
+
+            if (pool == null) {
+                // Builds run one at a time, so this is whatever the last one made
+                TraitSampler previous = traitPool;
+                if (previous != null)
+                    pool = previous.update(snapshot);
+                if (pool == null)
+                    pool = new TraitSampler(snapshot);
+                if (cacheFile != null && cacheKey != null)
+                    TraitPoolCache.write(cacheFile, cacheKey, pool);
+            }
 
-        int weightOfAll = WeightedRandom.getTotalWeight(pool);
-        poolSize = (int) (weightOfAll * (ModConfig.weightOfNone) / (1 - ModConfig.weightOfNone));
-        pool.add(new TraitRoll(poolSize));
+            publishTraitPool(request, pool);
+            return pool;
+        });
 
-        return pool;
+        pendingPool = task;
+        POOL_BUILDER.execute(task);
     }
 
-    private static void addAllForPrimary(Set<TraitRoll> rolls, LeveledTrait trait) {
-        Trait primary = trait.trait;
-
-        EnumTraitLevel secondaryLevel = trait.level.getSecondary();
-        EnumTraitLevel tertiaryFirstLevel = trait.level.getTertiaryFirst();
-        EnumTraitLevel tertiarySecondLevel = trait.level.getTertiarySecond();
-
-        permuteTraitRolls(rolls, trait,
-                secondaryLevel, tertiaryFirstLevel, tertiarySecondLevel,
-                null, null, null);
+    /**
+     * Blocks until the pool is ready, so that the first roll doesn't have to build it.
+     */
+    public static void prewarmTraitPool() {
+        getTraitPool();
+    }
 
-        if (tertiaryFirstLevel == EnumTraitLevel.NULL) {
-            for (Trait secondary : TraitManager.getAllTraits())
-                if (TraitRoll.canApply(primary, secondary, null, null))
-                    rolls.add(new TraitRoll(trait, of(secondary, secondaryLevel), null, null));
-        } else { // The first two levels can be optimized away
-            for (Trait secondary : TraitManager.getAllTraits()) {
-                if (secondary.canBeAppliedWith(primary)) {
-                    for (Trait tertiary : TraitManager.getAllWithNullEntry()) {
-                        if (tertiary != null && TraitRoll.canApply(primary, secondary, tertiary, null)) {
-                            for (Trait tertiarySecond : TraitManager.getAllWithNullEntry())
-                                    permuteTraitRolls(rolls, trait,
-                                            secondaryLevel, tertiaryFirstLevel, tertiarySecondLevel,
-                                            secondary, tertiary, tertiarySecond);
-                        } else if (tertiary == null) {
-                            permuteTraitRolls(rolls, trait,
-                                    secondaryLevel, tertiaryFirstLevel, tertiarySecondLevel,
-                                    secondary, null, null);
-                        }
-                    }
-                }
-            }
+    private static synchronized void publishTraitPool(int request, @Nonnull TraitSampler pool) {
+        if (request == poolRequests.get()) {
+            traitPool = pool;
+            pendingPool = null;
         }
     }
 
-    private static void permuteTraitRolls(Set<TraitRoll> rolls, LeveledTrait trait, EnumTraitLevel secondaryLevel, EnumTraitLevel tertiaryFirstLevel, EnumTraitLevel tertiarySecondLevel,
-                                          @Nullable Trait secondary, @Nullable Trait tertiaryFirst, @Nullable Trait tertiarySecond) {
-
-        if (!TraitRoll.canApply(trait.trait, secondary, tertiaryFirst, tertiarySecond))
-            return;
-
-        ImmutableSet.Builder<EnumTraitLevel> traitLevels = ImmutableSet.<EnumTraitLevel>builder().add(secondaryLevel);
-        if (tertiaryFirstLevel != EnumTraitLevel.NULL)
-            traitLevels.add(tertiaryFirstLevel);
-        if (tertiarySecondLevel != EnumTraitLevel.NULL)
-            traitLevels.add(tertiarySecondLevel);
-
-        ImmutableSet<EnumTraitLevel> levels = traitLevels.build();
-
-        ImmutableSet<EnumTraitLevel> nl = ImmutableSet.<EnumTraitLevel>builder().add(EnumTraitLevel.NULL).build();
-
-        for (EnumTraitLevel levelOfSecondary : levels) {
-            for (EnumTraitLevel levelOfTertiaryFirst : tertiaryFirst == null ? nl : levels) {
-                if (levelOfTertiaryFirst.ordinal() >= levelOfSecondary.ordinal())
-                    continue;
-
-                for (EnumTraitLevel levelOfTertiarySecond : tertiarySecond == null ? nl : levels) {
-                    if (levelOfTertiarySecond.ordinal() >= levelOfSecondary.ordinal())
-                        continue;
-
-                    rolls.add(new TraitRoll(trait,
-                            of(secondary, levelOfSecondary),
-                            of(tertiaryFirst, levelOfTertiaryFirst),
-                            of(tertiarySecond, levelOfTertiarySecond)));
-                }
+    @Nonnull
+    private static TraitSampler getTraitPool() {
+        TraitSampler pool = traitPool;
+        if (pool != null)
+            return pool;
+
+        Future<TraitSampler> pending = pendingPool;
+        if (pending != null) {
+            try {
+                return pending.get();
+            } catch (InterruptedException | ExecutionException e) {
+                FMLLog.log.error("Failed to build the trait pool in the background, building it again.", e);
             }
         }
-    }
 
-    @Nullable
-    private static LeveledTrait of(@Nullable Trait trait, @Nonnull EnumTraitLevel level) {
-        if (trait == null || level == EnumTraitLevel.NULL)
-            return null;
-        return new LeveledTrait(trait, level);
+        // Published like any other build, so it can't overwrite a newer one, or be overwritten by an older one
+        int request = poolRequests.incrementAndGet();
+        pool = createTraitPool();
+        publishTraitPool(request, pool);
+        return pool;
     }
 
-    private static class TraitRoll extends WeightedRandom.Item {
-
-        @Nullable
-        private final LeveledTrait primary;
-        @Nullable
-        private final LeveledTrait secondary;
-        @Nullable
-        private final LeveledTrait tertiaryFirst;
-        @Nullable
-        private final LeveledTrait tertiarySecond;
-
-        private TraitRoll(@Nullable LeveledTrait primary,
-                          @Nullable LeveledTrait secondary,
-                          @Nullable LeveledTrait tertiaryFirst,
-                          @Nullable LeveledTrait tertiarySecond,
-                          int weight) {
-            super(weight);
-            this.primary = primary;
-            this.secondary = secondary;
-            this.tertiaryFirst = tertiaryFirst;
-            this.tertiarySecond = tertiarySecond;
-        }
-
-        public TraitRoll(@Nullable LeveledTrait primary,
-                         @Nullable LeveledTrait secondary,
-                         @Nullable LeveledTrait tertiaryFirst,
-                         @Nullable LeveledTrait tertiarySecond) {
-            this(primary, secondary, tertiaryFirst, tertiarySecond,
-                    calculateWeight(primary, secondary, tertiaryFirst, tertiarySecond));
-        }
-
-        public TraitRoll(int weight) {
-            this(null, null, null, null, weight);
-        }
-
-        public void apply(ItemStack stack) {
-            if (primary != null)
-                TraitManager.setLevel(stack, primary.trait, primary.level);
-            if (secondary != null)
-                TraitManager.setLevel(stack, secondary.trait, secondary.level);
-            if (tertiaryFirst != null)
-                TraitManager.setLevel(stack, tertiaryFirst.trait, tertiaryFirst.level);
-            if (tertiarySecond != null)
-                TraitManager.setLevel(stack, tertiarySecond.trait, tertiarySecond.level);
-
-            if (primary == null && secondary == null && tertiaryFirst == null && tertiarySecond == null)
-                TraitManager.updateTraitData(stack, TraitManager.getTraitData(stack));
-        }
-
-        private static boolean canApply(@Nonnull Trait one, @Nullable Trait two, @Nullable Trait three, @Nullable Trait four) {
-            return (two == null || one.canBeAppliedWith(two)) &&
-                    (three == null || (one.canBeAppliedWith(three) &&
-                            (two == null || two.canBeAppliedWith(three)))) &&
-                    (four == null || (one.canBeAppliedWith(four) &&
-                            (two == null || two.canBeAppliedWith(four)) &&
-                            (three == null || three.canBeAppliedWith(four))));
-        }
-
-        private static int calculateWeight(@Nullable LeveledTrait primary,
-                                           @Nullable LeveledTrait secondary,
-                                           @Nullable LeveledTrait tertiaryFirst,
-                                           @Nullable LeveledTrait tertiarySecond) {
-            int defaultWeight = ModConfig.weightOfUncommon * 100 * 4;
-
-            double weightPercentage = 1;
-
-            if (primary != null)
-                weightPercentage *= primary.weightCost();
-            if (secondary != null)
-                weightPercentage *= secondary.weightCost();
-            if (tertiaryFirst != null)
-                weightPercentage *= tertiaryFirst.weightCost();
-            if (tertiarySecond != null)
-                weightPercentage *= tertiarySecond.weightCost();
-
-            return Math.max((int) (defaultWeight * weightPercentage), 1);
-        }
-
-        @Override
-        public String toString() {
-            return "" + primary + " " +
-                    secondary + " " +
-                    tertiaryFirst + " " +
-                    tertiarySecond;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            TraitRoll traitRoll = (TraitRoll) o;
-            return Objects.equals(primary, traitRoll.primary) &&
-                    Objects.equals(secondary, traitRoll.secondary) &&
-                    Objects.equals(tertiaryFirst, traitRoll.tertiaryFirst) &&
-                    Objects.equals(tertiarySecond, traitRoll.tertiarySecond);
-        }
+    @Nonnull
+    private static TraitSampler createTraitPool() {
+        return new TraitSampler();
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(primary, secondary, tertiaryFirst, tertiarySecond);
-        }
+    public static double weightCost(@Nonnull Trait trait, @Nonnull EnumTraitLevel level) {
+        double forLevel = 0;
+        switch (level) {
+            case UNCOMMON:
+                forLevel = ModConfig.weightOfUncommon;
+                break;
+            case RARE:
+                forLevel = ModConfig.weightOfRare;
+                break;
+            case EPIC:
+                forLevel = ModConfig.weightOfEpic;
+                break;
+            case LEGENDARY:
+                forLevel = ModConfig.weightOfLegendary;
+                break;
+        }
+
+        return (forLevel * trait.getWeight()) / (ModConfig.weightOfUncommon * 100 * 2);
     }
 
-    private static class LeveledTrait {
+    // A roll is packed into a long, as four 16-bit slots of (trait ID << 3 | level ordinal), primary first.
+    // A slot at the NULL level is empty.
 
-        private final Trait trait;
-        private final EnumTraitLevel level;
+    public static final long NO_TRAITS = 0L;
+    public static final int MAX_ROLL_TRAITS = 1 << 13;
 
-        public LeveledTrait(Trait trait, EnumTraitLevel level) {
-            this.trait = trait;
-            this.level = level;
-        }
+    private static final int SLOT_BITS = 16;
+    private static final int LEVEL_BITS = 3;
+    private static final int SLOTS = 4;
 
-        @Override
-        public String toString() {
-            return trait.getName() + ":" + level.getJsonKey();
-        }
+    private static final EnumTraitLevel[] ALL_LEVELS = EnumTraitLevel.values();
 
-        public Trait getTrait() {
-            return trait;
-        }
+    public static long packSlot(int slot, int traitId, @Nonnull EnumTraitLevel level) {
+        return (long) (traitId << LEVEL_BITS | level.ordinal()) << (slot * SLOT_BITS);
+    }
 
-        public EnumTraitLevel getLevel() {
-            return level;
-        }
+    public static void applyRoll(@Nonnull ItemStack stack, @Nonnull TraitSampler pool, long roll) {
+        boolean any = false;
 
-        public double weightCost() {
-            double forLevel = 0;
-            switch (level) {
-                case UNCOMMON:
-                    forLevel = ModConfig.weightOfUncommon;
-                    break;
-                case RARE:
-                    forLevel = ModConfig.weightOfRare;
-                    break;
-                case EPIC:
-                    forLevel = ModConfig.weightOfEpic;
-                    break;
-                case LEGENDARY:
-                    forLevel = ModConfig.weightOfLegendary;
-                    break;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int entry = (int) (roll >>> (slot * SLOT_BITS)) & ((1 << SLOT_BITS) - 1);
+            EnumTraitLevel level = ALL_LEVELS[entry & ((1 << LEVEL_BITS) - 1)];
+            int traitId = entry >>> LEVEL_BITS;
+            if (level != EnumTraitLevel.NULL && traitId < pool.getTraitCount()) {
+                TraitManager.setLevel(stack, pool.getTrait(traitId), level);
+                any = true;
             }
-
-            return (forLevel * trait.getWeight()) / (ModConfig.weightOfUncommon * 100 * 2);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            LeveledTrait that = (LeveledTrait) o;
-            return Objects.equals(trait, that.trait) &&
-                    level == that.level;
-        }
+        if (!any)
+            TraitManager.markRolled(stack);
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(trait, level);
-        }
+    @Nonnull
+    public static String rollToString(@Nonnull TraitSampler pool, long roll) {
+        StringBuilder builder = new StringBuilder();
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int entry = (int) (roll >>> (slot * SLOT_BITS)) & ((1 << SLOT_BITS) - 1);
+            EnumTraitLevel level = ALL_LEVELS[entry & ((1 << LEVEL_BITS) - 1)];
+            int traitId = entry >>> LEVEL_BITS;
+            if (slot != 0)
+                builder.append(' ');
+            if (level == EnumTraitLevel.NULL || traitId >= pool.getTraitCount())
+                builder.append("null");
+            else
+                builder.append(pool.getTrait(traitId).getName()).append(':').append(level.getJsonKey());
+        }
+        return builder.toString();
     }
 }
@@ -2,9 +2,17 @@ package wiresegal.fabled;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import net.minecraft.command.ICommandManager;
 import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
 import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.fml.common.FMLLog;
+import wiresegal.fabled.capability.TraitHolder;
 import wiresegal.fabled.config.Trait;
+import wiresegal.fabled.config.TraitAtLevel;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -19,12 +27,129 @@ public final class TraitManager {
     private static Set<Trait> TRAIT_SET = Sets.newHashSet();
     private static Set<Trait> TRAIT_SET_WITH_NULL = Sets.newHashSet((Trait) null);
 
+    private static Map<Long, Trait> TRAITS_BY_NBT_ID = new HashMap<>();
+    // Format 1 IDs can be shared by more than one trait; those map to null, as there's no telling which was meant
+    private static Map<Integer, Trait> TRAITS_BY_LEGACY_ID = new HashMap<>();
+    private static List<Trait> TRAITS_BY_ID = Lists.newArrayList();
+    // Symmetric conflict matrix, one bitset row per trait ID. Each row has its own bit set, as a trait can't pair with itself.
+    private static long[][] CONFLICTS = new long[0][];
+
     private static final String NBT_KEY = FabledWorks.FABLED + ":traits";
 
+    // Trait data is stored as an int array of the format version, followed by the sorted entries.
+    // Each entry is a long of (NBT ID << 3 | level ordinal), high half first. A stack that rolled no traits holds a single byte instead.
+    // Format 1 entries were a single int of (legacy NBT ID << 3 | level ordinal).
+    private static final int FORMAT_VERSION = 2;
+    private static final int LEGACY_FORMAT_VERSION = 1;
+    private static final int LEVEL_BITS = 3;
+    private static final long[] NO_ENTRIES = new long[0];
+    private static final EnumTraitLevel[] ALL_LEVELS = EnumTraitLevel.values();
+
     public static void registerTrait(Trait trait) {
+        addTrait(trait);
+        compileConflicts(trait);
+
+        TraitProfile.invalidateAll();
+    }
+
+    /**
+     * Registers a whole trait list at once.
+     * @param conflicts Conflict rows worked out ahead of time, indexed the same as the list.
+     *                  They are only used if the registry is empty, as otherwise the IDs won't line up.
+     */
+    public static void registerTraits(@Nonnull List<Trait> traits, @Nullable long[][] conflicts) {
+        if (conflicts == null || conflicts.length != traits.size() || !TRAITS_BY_ID.isEmpty()) {
+            for (Trait trait : traits)
+                registerTrait(trait);
+            return;
+        }
+
+        CONFLICTS = new long[traits.size()][];
+        for (Trait trait : traits) {
+            addTrait(trait);
+            CONFLICTS[trait.getId()] = conflicts[trait.getId()].clone();
+        }
+
+        TraitProfile.invalidateAll();
+    }
+
+    private static void addTrait(Trait trait) {
         ALL_TRAITS.put(trait.getName(), trait);
+        assignNBTId(trait);
         TRAIT_SET.add(trait);
         TRAIT_SET_WITH_NULL.add(trait);
+
+        trait.setId(TRAITS_BY_ID.size());
+        TRAITS_BY_ID.add(trait);
+    }
+
+    private static void assignNBTId(Trait trait) {
+        long hashed = Trait.getNBTIdFor(trait.getNBTKey());
+        long nbtId = hashed;
+        Trait sameId = TRAITS_BY_NBT_ID.get(nbtId);
+        while (sameId != null && !sameId.getName().equals(trait.getName())) {
+            nbtId = (nbtId + 1) & Trait.NBT_ID_MASK;
+            sameId = TRAITS_BY_NBT_ID.get(nbtId);
+        }
+
+        if (nbtId != hashed)
+            FMLLog.log.warn("Trait {} has a name that hashes the same as another trait's, so it's stored under the next free ID. " +
+                    "Items will only keep it while it stays after that trait in the config.", trait.getName());
+
+        trait.setNBTId(nbtId);
+        TRAITS_BY_NBT_ID.put(nbtId, trait);
+
+        int legacyId = Trait.getLegacyNBTIdFor(trait.getNBTKey());
+        if (!TRAITS_BY_LEGACY_ID.containsKey(legacyId))
+            TRAITS_BY_LEGACY_ID.put(legacyId, trait);
+        else {
+            Trait legacy = TRAITS_BY_LEGACY_ID.get(legacyId);
+            if (legacy != null && !legacy.getName().equals(trait.getName()))
+                TRAITS_BY_LEGACY_ID.put(legacyId, null);
+        }
+    }
+
+    private static void compileConflicts(Trait trait) {
+        int id = trait.getId();
+        if (id >= CONFLICTS.length)
+            CONFLICTS = Arrays.copyOf(CONFLICTS, Math.max(16, CONFLICTS.length * 2));
+        CONFLICTS[id] = new long[(id >>> 6) + 1];
+
+        setConflict(id, id);
+        for (int other = 0; other < id; other++) {
+            Trait otherTrait = TRAITS_BY_ID.get(other);
+            if (trait.listsConflictWith(otherTrait) || otherTrait.listsConflictWith(trait)) {
+                setConflict(id, other);
+                setConflict(other, id);
+            }
+        }
+    }
+
+    private static void setConflict(int row, int column) {
+        int word = column >>> 6;
+        if (word >= CONFLICTS[row].length)
+            CONFLICTS[row] = Arrays.copyOf(CONFLICTS[row], word + 1);
+        CONFLICTS[row][word] |= 1L << column;
+    }
+
+    public static boolean conflicts(int one, int two) {
+        long[] row = CONFLICTS[one];
+        int word = two >>> 6;
+        return word < row.length && (row[word] & (1L << two)) != 0;
+    }
+
+    @Nonnull
+    public static long[] conflictRow(int id) {
+        return CONFLICTS[id].clone();
+    }
+
+    public static int getTraitCount() {
+        return TRAITS_BY_ID.size();
+    }
+
+    @Nonnull
+    public static Trait getTraitById(int id) {
+        return TRAITS_BY_ID.get(id);
     }
 
     public static Set<Trait> getAllTraits() {
@@ -36,31 +161,200 @@ public final class TraitManager {
     }
 
     public static void purgeAllTraits() {
+        for (Trait trait : TRAITS_BY_ID)
+            trait.setId(-1);
+        TRAITS_BY_ID.clear();
+        TRAITS_BY_NBT_ID.clear();
+        TRAITS_BY_LEGACY_ID.clear();
+        CONFLICTS = new long[0][];
+
         ALL_TRAITS.clear();
         TRAIT_SET.clear();
         TRAIT_SET_WITH_NULL.clear();
         TRAIT_SET_WITH_NULL.add(null);
+        TraitProfile.invalidateAll();
+        TraitCommandScheduler.clear();
+    }
+
+    /**
+     * Resolves every trait's hit commands against the server, logging the ones that don't exist.
+     */
+    public static void compileCommands(@Nonnull MinecraftServer server) {
+        ICommandManager manager = server.getCommandManager();
+        for (Trait trait : TRAITS_BY_ID) {
+            for (EnumTraitLevel level : EnumTraitLevel.LEVELS) {
+                TraitAtLevel atLevel = trait.traitAtLevel(level);
+                if (atLevel != null && !atLevel.compileCommand(manager))
+                    FMLLog.log.error("Trait {} at level {} has a command that doesn't exist, and won't run: {}",
+                            trait.getName(), level.getJsonKey(), atLevel.getCommand());
+            }
+        }
     }
 
     @Nullable
-    private static NBTTagCompound traitDataOnStack(@Nonnull ItemStack stack) {
-        return stack.getSubCompound(NBT_KEY);
+    private static NBTBase traitDataOnStack(@Nonnull ItemStack stack) {
+        NBTTagCompound tag = stack.getTagCompound();
+        return tag == null ? null : tag.getTag(NBT_KEY);
     }
 
     public static boolean hasTraitData(@Nonnull ItemStack stack) {
-        return stack.getSubCompound(NBT_KEY) != null;
+        return traitDataOnStack(stack) != null;
+    }
+
+    public static long packEntry(long nbtId, @Nonnull EnumTraitLevel level) {
+        return nbtId << LEVEL_BITS | level.ordinal();
+    }
+
+    public static long entryId(long entry) {
+        return entry >>> LEVEL_BITS;
+    }
+
+    @Nonnull
+    public static EnumTraitLevel entryLevel(long entry) {
+        return ALL_LEVELS[(int) (entry & ((1 << LEVEL_BITS) - 1))];
+    }
+
+    // The level bits can hold more values than there are levels, and stored data can't be trusted to stay in range
+    private static boolean hasValidLevel(long entry) {
+        return (entry & ((1 << LEVEL_BITS) - 1)) < ALL_LEVELS.length;
+    }
+
+    /**
+     * Decodes stored trait data into sorted, packed entries.
+     * Reads the current layout, format 1, and the old compound of level names.
+     * Format 1 entries that don't belong to exactly one registered trait are left out, as are entries with no such level.
+     */
+    @Nonnull
+    public static long[] readEntries(@Nullable NBTBase data) {
+        if (data instanceof NBTTagIntArray) {
+            int[] stored = ((NBTTagIntArray) data).getIntArray();
+            if (stored.length == 0)
+                return NO_ENTRIES;
+
+            if (stored[0] == FORMAT_VERSION) {
+                long[] entries = new long[(stored.length - 1) / 2];
+                int size = 0;
+                for (int i = 0; i < entries.length; i++) {
+                    long entry = (long) stored[1 + i * 2] << 32 | (stored[2 + i * 2] & 0xFFFFFFFFL);
+                    if (hasValidLevel(entry))
+                        entries[size++] = entry;
+                }
+                return size == entries.length ? entries : Arrays.copyOf(entries, size);
+            } else if (stored[0] == LEGACY_FORMAT_VERSION) {
+                long[] entries = new long[stored.length - 1];
+                int size = 0;
+                for (int i = 1; i < stored.length; i++) {
+                    Trait trait = TRAITS_BY_LEGACY_ID.get(stored[i] >>> LEVEL_BITS);
+                    if (trait != null && hasValidLevel(stored[i]))
+                        entries[size++] = packEntry(trait.getNBTId(), entryLevel(stored[i]));
+                }
+                entries = Arrays.copyOf(entries, size);
+                Arrays.sort(entries);
+                return entries;
+            }
+        } else if (data instanceof NBTTagCompound) {
+            NBTTagCompound compound = (NBTTagCompound) data;
+            long[] entries = new long[compound.getSize()];
+            int size = 0;
+            for (String key : compound.getKeySet()) {
+                EnumTraitLevel level = EnumTraitLevel.fromName(compound.getString(key));
+                if (level != EnumTraitLevel.NULL) {
+                    Trait trait = lookupTrait(key);
+                    entries[size++] = packEntry(trait == null ? Trait.getNBTIdFor(key) : trait.getNBTId(), level);
+                }
+            }
+            entries = Arrays.copyOf(entries, size);
+            Arrays.sort(entries);
+            return entries;
+        }
+
+        return NO_ENTRIES;
+    }
+
+    /**
+     * @return Whether the data is in an older layout that can be rewritten without losing anything.
+     */
+    private static boolean canMigrate(@Nullable NBTBase data) {
+        if (data instanceof NBTTagCompound)
+            return true;
+        if (!(data instanceof NBTTagIntArray))
+            return false;
+
+        int[] stored = ((NBTTagIntArray) data).getIntArray();
+        if (stored.length == 0 || stored[0] != LEGACY_FORMAT_VERSION)
+            return false;
+        for (int i = 1; i < stored.length; i++)
+            if (TRAITS_BY_LEGACY_ID.get(stored[i] >>> LEVEL_BITS) == null)
+                return false;
+        return true;
+    }
+
+    private static void writeEntries(@Nonnull ItemStack stack, @Nonnull long[] entries) {
+        NBTBase data;
+        if (entries.length == 0)
+            data = new NBTTagByte((byte) 0);
+        else {
+            long[] sorted = entries.clone();
+            Arrays.sort(sorted);
+            int[] stored = new int[sorted.length * 2 + 1];
+            stored[0] = FORMAT_VERSION;
+            for (int i = 0; i < sorted.length; i++) {
+                stored[1 + i * 2] = (int) (sorted[i] >>> 32);
+                stored[2 + i * 2] = (int) sorted[i];
+            }
+            data = new NBTTagIntArray(stored);
+        }
+
+        stack.setTagInfo(NBT_KEY, data);
+
+        TraitHolder holder = TraitHolder.of(stack);
+        if (holder != null)
+            holder.invalidate();
     }
 
+    /**
+     * @return The traits on the stack, in the old layout of trait name to level name.
+     * Data in an older layout is migrated first; other changes only reach the stack through {@link #updateTraitData}.
+     */
     @Nonnull
     public static NBTTagCompound getTraitData(@Nonnull ItemStack stack) {
-        NBTTagCompound subCompound = traitDataOnStack(stack);
-        if (subCompound == null) subCompound = new NBTTagCompound();
+        migrateTraitData(stack);
+
+        NBTTagCompound traitData = new NBTTagCompound();
+        for (long entry : readEntries(traitDataOnStack(stack))) {
+            Trait trait = lookupTraitByNBTId(entryId(entry));
+            if (trait != null)
+                trait.setLevelOnCompound(traitData, entryLevel(entry));
+        }
 
-        return subCompound;
+        return traitData;
     }
 
     public static void updateTraitData(@Nonnull ItemStack stack, @Nonnull NBTTagCompound traitData) {
-        stack.setTagInfo(NBT_KEY, traitData);
+        writeEntries(stack, readEntries(traitData));
+    }
+
+    /**
+     * Marks the stack as having rolled, without giving it any traits it doesn't already have.
+     */
+    public static void markRolled(@Nonnull ItemStack stack) {
+        if (!hasTraitData(stack))
+            writeEntries(stack, NO_ENTRIES);
+    }
+
+    /**
+     * Rewrites trait data still in an older layout into the current one.
+     * Format 1 data with entries that can't be told apart is left as it is, so they aren't lost.
+     */
+    public static void migrateTraitData(@Nonnull ItemStack stack) {
+        NBTBase data = traitDataOnStack(stack);
+        if (canMigrate(data))
+            writeEntries(stack, readEntries(data));
+    }
+
+    @Nullable
+    public static Trait lookupTraitByNBTId(long nbtId) {
+        return TRAITS_BY_NBT_ID.get(nbtId);
     }
 
     @Nullable
@@ -76,8 +370,11 @@ public final class TraitManager {
 
     @Nonnull
     public static EnumTraitLevel getLevel(@Nonnull ItemStack stack, @Nonnull Trait trait) {
-        NBTTagCompound traitData = getTraitData(stack);
-        return trait.getLevelFromCompound(traitData);
+        TraitProfile profile = getProfile(stack);
+        for (int i = 0; i < profile.size(); i++)
+            if (profile.getTrait(i) == trait)
+                return profile.getLevel(i);
+        return EnumTraitLevel.NULL;
     }
 
     public static void setLevel(@Nonnull ItemStack stack, @Nonnull String traitName, @Nonnull EnumTraitLevel level) {
@@ -87,23 +384,33 @@ public final class TraitManager {
     }
 
     public static void setLevel(@Nonnull ItemStack stack, @Nonnull Trait trait, @Nonnull EnumTraitLevel level) {
-        NBTTagCompound traitData = getTraitData(stack);
-        trait.setLevelOnCompound(traitData, level);
-        updateTraitData(stack, traitData);
+        long[] entries = readEntries(traitDataOnStack(stack));
+        long[] updated = new long[entries.length + 1];
+        int size = 0;
+
+        // Entries of unregistered traits are carried over untouched
+        for (long entry : entries)
+            if (entryId(entry) != trait.getNBTId())
+                updated[size++] = entry;
+        if (level != EnumTraitLevel.NULL)
+            updated[size++] = packEntry(trait.getNBTId(), level);
+
+        writeEntries(stack, Arrays.copyOf(updated, size));
+    }
+
+    @Nonnull
+    public static TraitProfile getProfile(@Nonnull ItemStack stack) {
+        NBTBase data = traitDataOnStack(stack);
+        TraitHolder holder = TraitHolder.of(stack);
+        return holder == null ? TraitProfile.fromData(data) : holder.getProfile(data);
     }
 
     @Nonnull
     public static List<Trait> allTraitsOnStack(@Nonnull ItemStack stack) {
         List<Trait> traits = Lists.newArrayList();
-        NBTTagCompound data = traitDataOnStack(stack);
-        if (data == null)
-            return traits;
-
-        for (String key : data.getKeySet()) {
-            Trait trait = lookupTrait(key);
-            if (trait != null)
-                traits.add(trait);
-        }
+        TraitProfile profile = getProfile(stack);
+        for (int i = 0; i < profile.size(); i++)
+            traits.add(profile.getTrait(i));
 
         return traits;
     }
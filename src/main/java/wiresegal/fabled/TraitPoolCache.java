@@ -0,0 +1,80 @@
+package wiresegal.fabled;
+
+import com.google.common.hash.Hashing;
+import net.minecraftforge.fml.common.FMLLog;
+import wiresegal.fabled.config.JsonConfig;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Keeps the trait pool on disk between restarts.
+ */
+public final class TraitPoolCache {
+    private static final int MAGIC = 0x46575450; // FWTP
+    private static final int VERSION = 1;
+
+    @Nonnull
+    public static byte[] key(@Nonnull JsonConfig general, @Nonnull byte[] traitsHash) {
+        return Hashing.sha256().newHasher()
+                .putString(general.toString(), StandardCharsets.UTF_8)
+                .putBytes(traitsHash)
+                .hash().asBytes();
+    }
+
+    @Nullable
+    public static TraitSampler read(@Nonnull File file, @Nonnull byte[] key, @Nonnull TraitSampler.Snapshot snapshot) {
+        if (!file.isFile())
+            return null;
+
+        try {
+            // Read into memory rather than mapped, as a live mapping keeps the file from being replaced on some systems
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            int keyLength = buffer.getInt();
+            if (keyLength < 0 || keyLength > buffer.remaining())
+                return null;
+            byte[] storedKey = new byte[keyLength];
+            buffer.get(storedKey);
+            if (!Arrays.equals(key, storedKey))
+                return null;
+
+            return TraitSampler.read(snapshot, buffer);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            FMLLog.log.warn("Couldn't read the trait pool cache at {}, it will be rebuilt.", file, e);
+            return null;
+        }
+    }
+
+    public static void write(@Nonnull File file, @Nonnull byte[] key, @Nonnull TraitSampler pool) {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(key.length);
+                out.write(key);
+                pool.write(out);
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            FMLLog.log.warn("Couldn't write the trait pool cache to {}.", file, e);
+        }
+    }
+}
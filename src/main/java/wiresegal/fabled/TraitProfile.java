@@ -0,0 +1,213 @@
+package wiresegal.fabled;
+
+import com.google.common.collect.Multimap;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.ai.attributes.AttributeModifier;
+import net.minecraft.inventory.EntityEquipmentSlot;
+import net.minecraft.nbt.NBTBase;
+import wiresegal.fabled.config.Trait;
+import wiresegal.fabled.config.TraitAtLevel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One set of traits and levels, shared by every stack carrying them.
+ */
+public final class TraitProfile {
+    public static final TraitProfile EMPTY = new TraitProfile(new Trait[0], new EnumTraitLevel[0]);
+
+    // Stacks can carry any data at all, so both caches are dropped when they get this big
+    private static final int MAX_CACHED = 4096;
+
+    private static final Map<EntryKey, TraitProfile> BY_ENTRIES = new ConcurrentHashMap<>();
+    private static final Map<String, TraitProfile> BY_SIGNATURE = new ConcurrentHashMap<>();
+
+    private static volatile int generation = 0;
+
+    @Nonnull
+    private final Trait[] traits;
+    @Nonnull
+    private final EnumTraitLevel[] levels;
+
+    private final double knockbackMultiplier;
+    private final double penetration;
+    private final double chanceToBreak;
+
+    @Nonnull
+    private final Map<EntityEquipmentSlot, AttributeMerger> attributes;
+
+    @Nonnull
+    private final TraitAtLevel[] commands;
+
+    private TraitProfile(@Nonnull Trait[] traits, @Nonnull EnumTraitLevel[] levels) {
+        this.traits = traits;
+        this.levels = levels;
+
+        TraitAtLevel[] atLevels = new TraitAtLevel[traits.length];
+        for (int i = 0; i < traits.length; i++)
+            atLevels[i] = traits[i].traitAtLevel(levels[i]);
+
+        double knockback = 1;
+        double penetrating = 0;
+        double chance = traits.length == 0 ? 0 : 1;
+        List<TraitAtLevel> withCommands = new ArrayList<>();
+
+        for (TraitAtLevel atLevel : atLevels) {
+            if (atLevel == null) continue;
+            knockback = atLevel.getKnockbackMultiplier(knockback);
+            penetrating = atLevel.modifyWithPenetrationMultiplier(penetrating);
+            chance = atLevel.chanceToBreak(chance);
+            if (atLevel.hasCommand())
+                withCommands.add(atLevel);
+        }
+
+        this.knockbackMultiplier = knockback;
+        this.penetration = Math.min(1f, penetrating);
+        this.chanceToBreak = chance;
+        this.commands = withCommands.toArray(new TraitAtLevel[0]);
+
+        this.attributes = new EnumMap<>(EntityEquipmentSlot.class);
+        for (EntityEquipmentSlot slot : EntityEquipmentSlot.values()) {
+            AttributeMerger merger = new AttributeMerger();
+            for (TraitAtLevel atLevel : atLevels)
+                if (atLevel != null)
+                    atLevel.mergeAttributes(merger, slot);
+            if (!merger.isEmpty())
+                attributes.put(slot, merger);
+        }
+    }
+
+    @Nonnull
+    public static TraitProfile fromData(@Nullable NBTBase data) {
+        if (data == null || data.hasNoTags())
+            return EMPTY;
+
+        long[] entries = TraitManager.readEntries(data);
+        if (entries.length == 0)
+            return EMPTY;
+
+        EntryKey key = new EntryKey(entries);
+        TraitProfile profile = BY_ENTRIES.get(key);
+        if (profile == null) {
+            profile = decode(entries);
+            if (BY_ENTRIES.size() >= MAX_CACHED)
+                BY_ENTRIES.clear();
+            BY_ENTRIES.put(key, profile);
+        }
+
+        return profile;
+    }
+
+    public static void invalidateAll() {
+        BY_ENTRIES.clear();
+        BY_SIGNATURE.clear();
+        generation++;
+    }
+
+    /**
+     * Bumped every time the cached profiles are dropped, so holders of a profile can tell when it is stale.
+     */
+    public static int getGeneration() {
+        return generation;
+    }
+
+    @Nonnull
+    private static TraitProfile decode(@Nonnull long[] entries) {
+        Map<Trait, EnumTraitLevel> found = new HashMap<>();
+        for (long entry : entries) {
+            Trait trait = TraitManager.lookupTraitByNBTId(TraitManager.entryId(entry));
+            if (trait != null)
+                found.put(trait, TraitManager.entryLevel(entry));
+        }
+
+        if (found.isEmpty())
+            return EMPTY;
+
+        List<Trait> sorted = new ArrayList<>(found.keySet());
+        sorted.sort(Comparator.comparing((Trait trait) -> found.get(trait)).reversed()
+                .thenComparing(Trait::getName));
+
+        Trait[] traits = sorted.toArray(new Trait[0]);
+        EnumTraitLevel[] levels = new EnumTraitLevel[traits.length];
+        StringBuilder signature = new StringBuilder();
+        for (int i = 0; i < traits.length; i++) {
+            levels[i] = found.get(traits[i]);
+            signature.append(traits[i].getName()).append(':').append(levels[i].getName()).append(';');
+        }
+
+        if (BY_SIGNATURE.size() >= MAX_CACHED) {
+            // Equal profiles are made anew after this, so anything keyed by the old ones has to be dropped too
+            BY_SIGNATURE.clear();
+            generation++;
+        }
+        return BY_SIGNATURE.computeIfAbsent(signature.toString(), (key) -> new TraitProfile(traits, levels));
+    }
+
+    public boolean isEmpty() {
+        return traits.length == 0;
+    }
+
+    public int size() {
+        return traits.length;
+    }
+
+    /**
+     * Sorted by level, highest first, then by trait name.
+     */
+    @Nonnull
+    public Trait getTrait(int index) {
+        return traits[index];
+    }
+
+    @Nonnull
+    public EnumTraitLevel getLevel(int index) {
+        return levels[index];
+    }
+
+    public double getKnockbackMultiplier() {
+        return knockbackMultiplier;
+    }
+
+    public double getPenetration() {
+        return penetration;
+    }
+
+    public double getChanceToBreak() {
+        return chanceToBreak;
+    }
+
+    public void applyAttributes(@Nonnull EntityEquipmentSlot slot, @Nonnull Multimap<String, AttributeModifier> modifiers) {
+        AttributeMerger merger = attributes.get(slot);
+        if (merger != null)
+            merger.apply(modifiers);
+    }
+
+    public void hitEntity(@Nonnull EntityLivingBase attacker) {
+        for (TraitAtLevel command : commands)
+            TraitCommandScheduler.schedule(attacker, command);
+    }
+
+    private static class EntryKey {
+        @Nonnull
+        private final long[] entries;
+        private final int hash;
+
+        private EntryKey(@Nonnull long[] entries) {
+            this.entries = entries;
+            this.hash = Arrays.hashCode(entries);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof EntryKey && Arrays.equals(entries, ((EntryKey) obj).entries);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
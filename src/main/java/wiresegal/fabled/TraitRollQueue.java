@@ -0,0 +1,70 @@
+package wiresegal.fabled;
+
+import com.google.common.collect.MapMaker;
+import net.minecraft.item.ItemStack;
+import wiresegal.fabled.config.ModConfig;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Rolls from ticking inventories, worked through at the end of the server tick on a budget.
+ */
+public final class TraitRollQueue {
+    // Filled from any world's tick, drained on the server thread. Stacks are held weakly, so a queued stack that's gone isn't kept around.
+    private static final Queue<QueuedRoll> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final Set<ItemStack> QUEUED = Collections.newSetFromMap(new MapMaker().weakKeys().makeMap());
+
+    public static void enqueue(@Nonnull ItemStack stack, @Nonnull Random random) {
+        if (QUEUED.add(stack))
+            QUEUE.add(new QueuedRoll(stack, random));
+    }
+
+    public static int size() {
+        return QUEUE.size();
+    }
+
+    public static void process() {
+        int rolled = 0;
+        long deadline = System.nanoTime() + (long) (ModConfig.rollTimeBudget * 1000000);
+
+        while (rolled < ModConfig.rollsPerTick && System.nanoTime() < deadline) {
+            QueuedRoll roll = QUEUE.poll();
+            if (roll == null)
+                break;
+
+            ItemStack stack = roll.stack.get();
+            if (stack == null)
+                continue;
+            QUEUED.remove(stack);
+
+            // The stack may have been rolled or given traits some other way while it waited
+            if (!stack.isEmpty() && !TraitManager.hasTraitData(stack)) {
+                TraitGenerator.rollTraits(stack, roll.random, false);
+                rolled++;
+            }
+        }
+    }
+
+    public static void clear() {
+        QUEUE.clear();
+        QUEUED.clear();
+    }
+
+    private static class QueuedRoll {
+        @Nonnull
+        private final WeakReference<ItemStack> stack;
+        @Nonnull
+        private final Random random;
+
+        private QueuedRoll(@Nonnull ItemStack stack, @Nonnull Random random) {
+            this.stack = new WeakReference<>(stack);
+            this.random = random;
+        }
+    }
+}
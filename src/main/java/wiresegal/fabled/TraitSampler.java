@@ -0,0 +1,581 @@
+package wiresegal.fabled;
+
+import net.minecraftforge.fml.common.FMLLog;
+import wiresegal.fabled.config.ModConfig;
+import wiresegal.fabled.config.Trait;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Draws trait rolls from the full trait pool without building it.
+ */
+public final class TraitSampler {
+    private static final EnumTraitLevel[] LEVELS = EnumTraitLevel.LEVELS;
+
+    // Stands in for the roll tables of a scratch sampler, which is never rolled from
+    private static final AliasTable NO_TABLE = new AliasTable(new long[0]);
+
+    @Nonnull
+    private final Trait[] traits;
+    @Nonnull
+    private final long[][] conflicts;
+
+    // Indexed by [level ordinal][trait ID]
+    @Nonnull
+    private final double[][] costs;
+    // All trait costs at a level, run-length encoded, so sums over "every compatible trait" don't need to visit each one
+    @Nonnull
+    private final double[][] distinctCosts;
+    @Nonnull
+    private final int[][] distinctCounts;
+
+    private final int defaultWeight;
+
+    // Indexed by [trait ID * LEVELS.length + level index]
+    @Nonnull
+    private final long[] groupWeights;
+    // Per group, indexed by secondary trait ID
+    @Nonnull
+    private final long[][] secondaryWeights;
+    // Per group, over the lone primary followed by each secondary trait ID
+    @Nonnull
+    private final AliasTable[] groupTables;
+
+    private final long traitWeight;
+    private final long noneWeight;
+
+    // Over every group, followed by the chance of no traits at all
+    @Nonnull
+    private final AliasTable rollTable;
+    // The same, with half of the no-trait weight taken off for loot
+    @Nonnull
+    private final AliasTable lootTable;
+
+    public TraitSampler() {
+        this(new Snapshot());
+    }
+
+    /**
+     * Builds from a snapshot, so the work can happen off the thread that loaded the traits.
+     */
+    public TraitSampler(@Nonnull Snapshot snapshot) {
+        this(snapshot, null, null, false);
+    }
+
+    /**
+     * @param scratch Whether to skip building the roll tables, for a sampler that's only used to work out weights.
+     */
+    private TraitSampler(@Nonnull Snapshot snapshot, @Nullable long[] cachedGroupWeights, @Nullable long[][] cachedSecondaryWeights,
+                         boolean scratch) {
+        int count = snapshot.traits.length;
+        this.traits = snapshot.traits;
+        this.conflicts = snapshot.conflicts;
+        this.costs = snapshot.costs;
+        this.defaultWeight = snapshot.defaultWeight;
+
+        EnumTraitLevel[] allLevels = EnumTraitLevel.values();
+        this.distinctCosts = new double[allLevels.length][];
+        this.distinctCounts = new int[allLevels.length][];
+        for (EnumTraitLevel level : LEVELS) {
+            double[] sorted = costs[level.ordinal()].clone();
+            Arrays.sort(sorted);
+            double[] values = new double[count];
+            int[] counts = new int[count];
+            int distinct = 0;
+            for (double cost : sorted) {
+                if (distinct == 0 || Double.compare(values[distinct - 1], cost) != 0)
+                    values[distinct++] = cost;
+                counts[distinct - 1]++;
+            }
+            distinctCosts[level.ordinal()] = Arrays.copyOf(values, distinct);
+            distinctCounts[level.ordinal()] = Arrays.copyOf(counts, distinct);
+        }
+
+        int groups = count * LEVELS.length;
+        this.groupWeights = new long[groups];
+        this.secondaryWeights = new long[groups][];
+        this.groupTables = new AliasTable[scratch ? 0 : groups];
+
+        // Every group only writes its own slots, so they can be built in any order, on any thread.
+        IntStream.range(0, groups).parallel().forEach((group) -> {
+            int primary = group / LEVELS.length;
+            EnumTraitLevel level = LEVELS[group % LEVELS.length];
+            if (cachedGroupWeights == null || cachedSecondaryWeights == null)
+                buildGroup(group, primary, level);
+            else {
+                groupWeights[group] = cachedGroupWeights[group];
+                secondaryWeights[group] = cachedSecondaryWeights[group];
+            }
+            if (!scratch)
+                groupTables[group] = groupTable(group, primary, level);
+        });
+
+        long total = 0;
+        for (long weight : groupWeights)
+            total += weight;
+
+        this.traitWeight = total;
+        this.noneWeight = (long) (traitWeight * snapshot.weightOfNone / (1 - snapshot.weightOfNone));
+
+        if (scratch) {
+            this.rollTable = NO_TABLE;
+            this.lootTable = NO_TABLE;
+            return;
+        }
+
+        long[] withNone = Arrays.copyOf(groupWeights, groups + 1);
+        withNone[groups] = noneWeight;
+        this.rollTable = new AliasTable(withNone);
+        withNone[groups] = noneWeight - noneWeight / 2;
+        this.lootTable = new AliasTable(withNone);
+    }
+
+    /**
+     * Everything the sampler needs from the trait registry and config, copied out on the calling thread.
+     */
+    public static final class Snapshot {
+        @Nonnull
+        private final Trait[] traits;
+        @Nonnull
+        private final long[][] conflicts;
+        @Nonnull
+        private final double[][] costs;
+
+        private final int defaultWeight;
+        private final double weightOfNone;
+
+        public Snapshot() {
+            int count = TraitManager.getTraitCount();
+            if (count > TraitGenerator.MAX_ROLL_TRAITS) {
+                FMLLog.log.warn("Only the first {} of {} traits can be rolled.", TraitGenerator.MAX_ROLL_TRAITS, count);
+                count = TraitGenerator.MAX_ROLL_TRAITS;
+            }
+
+            this.traits = new Trait[count];
+            this.conflicts = new long[count][];
+            for (int id = 0; id < count; id++) {
+                traits[id] = TraitManager.getTraitById(id);
+                conflicts[id] = TraitManager.conflictRow(id);
+            }
+
+            this.costs = new double[EnumTraitLevel.values().length][];
+            for (EnumTraitLevel level : LEVELS) {
+                double[] atLevel = new double[count];
+                for (int id = 0; id < count; id++)
+                    atLevel[id] = TraitGenerator.weightCost(traits[id], level);
+                costs[level.ordinal()] = atLevel;
+            }
+
+            this.defaultWeight = ModConfig.weightOfUncommon * 100 * 4;
+            this.weightOfNone = ModConfig.weightOfNone;
+        }
+    }
+
+    public int getTraitCount() {
+        return traits.length;
+    }
+
+    /**
+     * Rolls name traits by the IDs they had when this sampler was built, which may have been reassigned since.
+     */
+    @Nonnull
+    public Trait getTrait(int id) {
+        return traits[id];
+    }
+
+    /**
+     * Rebuilds against a new snapshot by patching the existing weights, for when only a few traits changed.
+     * Traits are changed if their costs or conflicts differ; every group they can appear in is corrected by the
+     * difference they make, and everything else is kept.
+     * @return The updated sampler, or null if the traits were added, removed or reordered, or too many changed to be worth it.
+     */
+    @Nullable
+    public TraitSampler update(@Nonnull Snapshot snapshot) {
+        int count = traits.length;
+        if (snapshot.traits.length != count || snapshot.defaultWeight != defaultWeight)
+            return null;
+        for (int id = 0; id < count; id++)
+            if (!traits[id].getName().equals(snapshot.traits[id].getName()))
+                return null;
+
+        boolean[] isChanged = new boolean[count];
+        int changedCount = 0;
+        for (int id = 0; id < count; id++) {
+            for (EnumTraitLevel level : LEVELS) {
+                if (Double.compare(costs[level.ordinal()][id], snapshot.costs[level.ordinal()][id]) != 0) {
+                    isChanged[id] = true;
+                    break;
+                }
+            }
+            if (isChanged[id])
+                changedCount++;
+        }
+
+        // A conflict that was added or removed only needs one of its two traits marked
+        for (int id = 0; id < count; id++) {
+            long[] before = conflicts[id];
+            long[] after = snapshot.conflicts[id];
+            int words = Math.max(before.length, after.length);
+            for (int word = 0; word < words && !isChanged[id]; word++) {
+                long bits = word(before, word) ^ word(after, word);
+                while (bits != 0) {
+                    int other = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (other < count && !isChanged[other]) {
+                        isChanged[id] = true;
+                        changedCount++;
+                        break;
+                    }
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        // Each changed trait costs about as much as T^3 / D of a full build; past a quarter of them, start over
+        if (changedCount * 4 > count)
+            return null;
+
+        int[] changed = new int[changedCount];
+        for (int id = 0, i = 0; id < count; id++)
+            if (isChanged[id])
+                changed[i++] = id;
+
+        long[][] copiedSecondaries = new long[secondaryWeights.length][];
+        for (int group = 0; group < secondaryWeights.length; group++)
+            copiedSecondaries[group] = secondaryWeights[group].clone();
+
+        // Only used to evaluate the new traits, so its tables aren't built
+        TraitSampler next = new TraitSampler(snapshot, groupWeights, copiedSecondaries, true);
+
+        if (changedCount != 0) {
+            IntStream.range(0, groupWeights.length).parallel().forEach((group) -> {
+                int primary = group / LEVELS.length;
+                EnumTraitLevel level = LEVELS[group % LEVELS.length];
+                if (isChanged[primary] || level.getSecondary() == EnumTraitLevel.NULL) {
+                    next.buildGroup(group, primary, level);
+                    return;
+                }
+
+                double primaryCost = costs[level.ordinal()][primary];
+                long[] secondaries = next.secondaryWeights[group];
+                long total = weight(primaryCost);
+                for (int secondary = 0; secondary < count; secondary++) {
+                    if (!next.compatible(primary, secondary))
+                        secondaries[secondary] = 0;
+                    else if (isChanged[secondary] || !compatible(primary, secondary))
+                        secondaries[secondary] = next.secondaryWeight(primary, secondary, level, primaryCost);
+                    else
+                        secondaries[secondary] += tertiaryDelta(next, primary, secondary, level, primaryCost, changed, isChanged);
+                    total += secondaries[secondary];
+                }
+                next.groupWeights[group] = total;
+            });
+        }
+
+        return new TraitSampler(snapshot, next.groupWeights, next.secondaryWeights, false);
+    }
+
+    /**
+     * How much the tertiary half of an unchanged primary and secondary's weight moves between this sampler and the next.
+     */
+    private long tertiaryDelta(@Nonnull TraitSampler next, int primary, int secondary, @Nonnull EnumTraitLevel level,
+                               double primaryCost, @Nonnull int[] changed, @Nonnull boolean[] isChanged) {
+        int tertiaryLevel = level.getTertiaryFirst().ordinal();
+        if (tertiaryLevel == 0)
+            return 0;
+
+        double withSecondary = primaryCost * costs[level.getSecondary().ordinal()][secondary];
+        long delta = 0;
+
+        for (int tertiary = 0; tertiary < traits.length; tertiary++) {
+            boolean before = compatible(primary, tertiary) && compatible(secondary, tertiary);
+
+            if (isChanged[tertiary]) {
+                if (before) {
+                    double withTertiary = withSecondary * costs[tertiaryLevel][tertiary];
+                    delta -= weight(withTertiary) + lastTertiaryWeight(withTertiary, tertiaryLevel, primary, secondary, tertiary);
+                }
+                if (next.compatible(primary, tertiary) && next.compatible(secondary, tertiary)) {
+                    double withTertiary = withSecondary * next.costs[tertiaryLevel][tertiary];
+                    delta += next.weight(withTertiary) + next.lastTertiaryWeight(withTertiary, tertiaryLevel, primary, secondary, tertiary);
+                }
+            } else if (before) {
+                // Only the changed traits can have moved as the fourth
+                double withTertiary = withSecondary * costs[tertiaryLevel][tertiary];
+                for (int last : changed) {
+                    if (compatible(primary, last) && compatible(secondary, last) && compatible(tertiary, last))
+                        delta -= weight(withTertiary * costs[tertiaryLevel][last]);
+                    if (next.compatible(primary, last) && next.compatible(secondary, last) && next.compatible(tertiary, last))
+                        delta += weight(withTertiary * next.costs[tertiaryLevel][last]);
+                }
+            }
+        }
+
+        return delta;
+    }
+
+    private void buildGroup(int group, int primary, @Nonnull EnumTraitLevel level) {
+        double primaryCost = costs[level.ordinal()][primary];
+        int count = traits.length;
+
+        if (level.getSecondary() == EnumTraitLevel.NULL) {
+            // A lone uncommon trait only comes up if it could have had a partner
+            long alone = 0;
+            for (int secondary = 0; secondary < count; secondary++) {
+                if (compatible(primary, secondary)) {
+                    alone = weight(primaryCost);
+                    break;
+                }
+            }
+            secondaryWeights[group] = new long[0];
+            groupWeights[group] = alone;
+            return;
+        }
+
+        long[] secondaries = new long[count];
+        long total = weight(primaryCost);
+        for (int secondary = 0; secondary < count; secondary++) {
+            if (compatible(primary, secondary)) {
+                secondaries[secondary] = secondaryWeight(primary, secondary, level, primaryCost);
+                total += secondaries[secondary];
+            }
+        }
+
+        secondaryWeights[group] = secondaries;
+        groupWeights[group] = total;
+    }
+
+    @Nonnull
+    private AliasTable groupTable(int group, int primary, @Nonnull EnumTraitLevel level) {
+        if (level.getSecondary() == EnumTraitLevel.NULL)
+            return new AliasTable(new long[] { groupWeights[group] });
+
+        long[] secondaries = secondaryWeights[group];
+        long[] withAlone = new long[secondaries.length + 1];
+        withAlone[0] = weight(costs[level.ordinal()][primary]);
+        System.arraycopy(secondaries, 0, withAlone, 1, secondaries.length);
+        return new AliasTable(withAlone);
+    }
+
+    /**
+     * Writes the trait names and the per-group weights, which are the only parts that are expensive to work out.
+     */
+    public void write(@Nonnull DataOutput out) throws IOException {
+        out.writeInt(traits.length);
+        for (Trait trait : traits)
+            out.writeUTF(trait.getName());
+
+        out.writeInt(groupWeights.length);
+        for (int group = 0; group < groupWeights.length; group++) {
+            out.writeLong(groupWeights[group]);
+            out.writeInt(secondaryWeights[group].length);
+            for (long weight : secondaryWeights[group])
+                out.writeLong(weight);
+        }
+    }
+
+    /**
+     * @return A sampler from weights written by {@link #write}, or null if they were written for different traits.
+     */
+    @Nullable
+    public static TraitSampler read(@Nonnull Snapshot snapshot, @Nonnull ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count != snapshot.traits.length)
+            return null;
+        for (Trait trait : snapshot.traits)
+            if (!trait.getName().equals(readUTF(buffer)))
+                return null;
+
+        int groups = buffer.getInt();
+        if (groups != count * LEVELS.length)
+            return null;
+
+        long[] groupWeights = new long[groups];
+        long[][] secondaryWeights = new long[groups][];
+        for (int group = 0; group < groups; group++) {
+            groupWeights[group] = buffer.getLong();
+            int secondaries = buffer.getInt();
+            if ((secondaries != 0 && secondaries != count) || (long) secondaries * Long.BYTES > buffer.remaining())
+                return null;
+
+            secondaryWeights[group] = new long[secondaries];
+            buffer.asLongBuffer().get(secondaryWeights[group]);
+            buffer.position(buffer.position() + secondaries * Long.BYTES);
+        }
+
+        return new TraitSampler(snapshot, groupWeights, secondaryWeights, false);
+    }
+
+    @Nonnull
+    private static String readUTF(@Nonnull ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        // Modified UTF-8 only differs for nulls and surrogate pairs, neither of which belong in a trait name
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long secondaryWeight(int primary, int secondary, @Nonnull EnumTraitLevel level, double primaryCost) {
+        int secondaryLevel = level.getSecondary().ordinal();
+        int tertiaryLevel = level.getTertiaryFirst().ordinal();
+
+        double withSecondary = primaryCost * costs[secondaryLevel][secondary];
+        long total = weight(withSecondary);
+
+        if (tertiaryLevel != 0) {
+            total += weight(primaryCost * costs[tertiaryLevel][secondary]);
+
+            for (int tertiary = 0; tertiary < traits.length; tertiary++) {
+                if (compatible(primary, tertiary) && compatible(secondary, tertiary)) {
+                    double withTertiary = withSecondary * costs[tertiaryLevel][tertiary];
+                    total += weight(withTertiary) + lastTertiaryWeight(withTertiary, tertiaryLevel, primary, secondary, tertiary);
+                }
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * The summed weight of every fourth trait that fits with the other three.
+     * Computed as the sum over all traits, less the ones in any of the three conflict rows.
+     */
+    private long lastTertiaryWeight(double current, int level, int primary, int secondary, int tertiary) {
+        long total = 0;
+
+        double[] values = distinctCosts[level];
+        int[] counts = distinctCounts[level];
+        for (int i = 0; i < values.length; i++)
+            total += counts[i] * (long) weight(current * values[i]);
+
+        long[] one = conflicts[primary];
+        long[] two = conflicts[secondary];
+        long[] three = conflicts[tertiary];
+        int words = Math.max(one.length, Math.max(two.length, three.length));
+        for (int word = 0; word < words; word++) {
+            long bits = word(one, word) | word(two, word) | word(three, word);
+            while (bits != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (id < traits.length)
+                    total -= weight(current * costs[level][id]);
+                bits &= bits - 1;
+            }
+        }
+
+        return total;
+    }
+
+    private static long word(@Nonnull long[] row, int word) {
+        return word < row.length ? row[word] : 0;
+    }
+
+    private boolean compatible(int one, int two) {
+        long[] row = conflicts[one];
+        int word = two >>> 6;
+        return word >= row.length || (row[word] & (1L << two)) == 0;
+    }
+
+    private int weight(double weightPercentage) {
+        return Math.max((int) (defaultWeight * weightPercentage), 1);
+    }
+
+    /**
+     * @return A roll packed by {@link TraitGenerator#packSlot}, or {@link TraitGenerator#NO_TRAITS}.
+     */
+    public long sample(@Nonnull Random random, boolean fromLoot) {
+        AliasTable table = fromLoot ? lootTable : rollTable;
+        if (table.isEmpty())
+            return TraitGenerator.NO_TRAITS;
+
+        int group = table.sample(random);
+        if (group == groupWeights.length)
+            return TraitGenerator.NO_TRAITS;
+
+        int primary = group / LEVELS.length;
+        EnumTraitLevel level = LEVELS[group % LEVELS.length];
+        long rolled = TraitGenerator.packSlot(0, primary, level);
+
+        int choice = groupTables[group].sample(random);
+        if (choice == 0)
+            return rolled;
+
+        int secondary = choice - 1;
+        long roll = nextLong(random, secondaryWeights[group][secondary]);
+        return sampleWithSecondary(roll, rolled, primary, secondary, level);
+    }
+
+    private long sampleWithSecondary(long roll, long rolled, int primary, int secondary, @Nonnull EnumTraitLevel level) {
+        EnumTraitLevel secondaryLevel = level.getSecondary();
+        EnumTraitLevel tertiaryLevel = level.getTertiaryFirst();
+        int tertiaryOrdinal = tertiaryLevel.ordinal();
+
+        double primaryCost = costs[level.ordinal()][primary];
+        double withSecondary = primaryCost * costs[secondaryLevel.ordinal()][secondary];
+
+        long weight = weight(withSecondary);
+        if (roll < weight || tertiaryOrdinal == 0)
+            return rolled | TraitGenerator.packSlot(1, secondary, secondaryLevel);
+        roll -= weight;
+
+        weight = weight(primaryCost * costs[tertiaryOrdinal][secondary]);
+        if (roll < weight)
+            return rolled | TraitGenerator.packSlot(1, secondary, tertiaryLevel);
+        roll -= weight;
+
+        rolled |= TraitGenerator.packSlot(1, secondary, secondaryLevel);
+
+        for (int tertiary = 0; tertiary < traits.length; tertiary++) {
+            if (!compatible(primary, tertiary) || !compatible(secondary, tertiary))
+                continue;
+
+            double withTertiary = withSecondary * costs[tertiaryOrdinal][tertiary];
+            long withTertiaryRolled = rolled | TraitGenerator.packSlot(2, tertiary, tertiaryLevel);
+
+            weight = weight(withTertiary);
+            if (roll < weight)
+                return withTertiaryRolled;
+            roll -= weight;
+
+            weight = lastTertiaryWeight(withTertiary, tertiaryOrdinal, primary, secondary, tertiary);
+            if (roll >= weight) {
+                roll -= weight;
+                continue;
+            }
+
+            for (int last = 0; last < traits.length; last++) {
+                if (!compatible(primary, last) || !compatible(secondary, last) || !compatible(tertiary, last))
+                    continue;
+
+                weight = weight(withTertiary * costs[tertiaryOrdinal][last]);
+                if (roll < weight)
+                    return withTertiaryRolled | TraitGenerator.packSlot(3, last, tertiaryLevel);
+                roll -= weight;
+            }
+        }
+
+        throw new IllegalStateException("Trait roll fell outside of the sampled group");
+    }
+
+    private static long nextLong(@Nonnull Random random, long bound) {
+        if (bound <= Integer.MAX_VALUE)
+            return random.nextInt((int) bound);
+
+        long bits;
+        long value;
+        do {
+            bits = random.nextLong() >>> 1;
+            value = bits % bound;
+        } while (bits - value + (bound - 1) < 0);
+        return value;
+    }
+}
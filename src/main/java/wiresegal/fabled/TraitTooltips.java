@@ -0,0 +1,59 @@
+package wiresegal.fabled;
+
+import com.google.common.collect.ImmutableList;
+import net.minecraft.client.Minecraft;
+import net.minecraftforge.client.event.TextureStitchEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static wiresegal.fabled.FabledWorks.FABLED;
+
+/**
+ * The trait lines for each profile, built once per language.
+ */
+@SideOnly(Side.CLIENT)
+@Mod.EventBusSubscriber(value = Side.CLIENT, modid = FABLED)
+public final class TraitTooltips {
+    private static final Map<TraitProfile, List<String>> LINES = new HashMap<>();
+
+    private static String language = null;
+    private static int generation = -1;
+
+    // Stitching happens on every resource reload
+    @SubscribeEvent
+    public static void resourcesReloaded(TextureStitchEvent.Pre event) {
+        invalidate();
+    }
+
+    public static void invalidate() {
+        LINES.clear();
+    }
+
+    @Nonnull
+    public static List<String> getLines(@Nonnull TraitProfile profile) {
+        String currentLanguage = Minecraft.getMinecraft().getLanguageManager().getCurrentLanguage().getLanguageCode();
+        if (generation != TraitProfile.getGeneration() || !currentLanguage.equals(language)) {
+            invalidate();
+            generation = TraitProfile.getGeneration();
+            language = currentLanguage;
+        }
+
+        return LINES.computeIfAbsent(profile, TraitTooltips::buildLines);
+    }
+
+    @Nonnull
+    private static List<String> buildLines(@Nonnull TraitProfile profile) {
+        // Profiles are already sorted highest level first, which is the order the lines go in
+        ImmutableList.Builder<String> lines = ImmutableList.builder();
+        for (int i = 0; i < profile.size(); i++)
+            lines.add(profile.getLevel(i).getLocalizedText(profile.getTrait(i), i == 0));
+        return lines.build();
+    }
+}
@@ -8,6 +8,8 @@ import net.minecraft.world.World;
 import wiresegal.fabled.FabledWorks;
 import wiresegal.fabled.TraitGenerator;
 import wiresegal.fabled.TraitManager;
+import wiresegal.fabled.TraitRollQueue;
+import wiresegal.fabled.config.ModConfig;
 
 import java.util.Random;
 
@@ -25,7 +27,7 @@ public class FabledAsmHooks {
     }
 
     public static boolean shouldNotDamage(ItemStack stack, int index, Random rand) {
-        return FabledWorks.preventDamage(stack, index == 0, rand);
+        return FabledWorks.preventDamage(stack, rand);
     }
 
     public static void modifyLootStack(ItemStack stack, Random random) {
@@ -33,7 +35,13 @@ public class FabledAsmHooks {
     }
 
     public static void itemUpdate(ItemStack stack, World world) {
-        if (!world.isRemote && !TraitManager.hasTraitData(stack))
-            TraitGenerator.rollTraits(stack, world.rand, false);
+        // Clients never roll, and items that can't have traits are turned away before their tags are touched
+        if (world.isRemote || !ModConfig.canReceiveTraits.test(stack.getItem()))
+            return;
+
+        if (TraitManager.hasTraitData(stack))
+            TraitManager.migrateTraitData(stack);
+        else if (TraitGenerator.rollsFrom(false))
+            TraitRollQueue.enqueue(stack, world.rand);
     }
 }
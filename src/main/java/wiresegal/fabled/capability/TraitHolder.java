@@ -0,0 +1,84 @@
+package wiresegal.fabled.capability;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.capabilities.CapabilityInject;
+import net.minecraftforge.common.capabilities.CapabilityManager;
+import net.minecraftforge.common.capabilities.ICapabilityProvider;
+import wiresegal.fabled.TraitProfile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static wiresegal.fabled.FabledWorks.FABLED;
+
+/**
+ * Per-stack cache of the decoded trait data.
+ */
+public class TraitHolder implements ICapabilityProvider {
+    @CapabilityInject(TraitHolder.class)
+    public static Capability<TraitHolder> CAPABILITY = null;
+
+    public static final ResourceLocation KEY = new ResourceLocation(FABLED, "traits");
+
+    public static void register() {
+        CapabilityManager.INSTANCE.register(TraitHolder.class, new Storage(), TraitHolder::new);
+    }
+
+    @Nullable
+    public static TraitHolder of(@Nonnull ItemStack stack) {
+        return CAPABILITY == null ? null : stack.getCapability(CAPABILITY, null);
+    }
+
+    // The tag the profile was decoded from. TraitManager always writes a new tag, so a different one means new data.
+    @Nullable
+    private NBTBase source = null;
+    @Nullable
+    private TraitProfile profile = null;
+    private int generation = -1;
+
+    @Nonnull
+    public TraitProfile getProfile(@Nullable NBTBase data) {
+        TraitProfile current = profile;
+        if (current == null || generation != TraitProfile.getGeneration() || data != source) {
+            generation = TraitProfile.getGeneration();
+            current = TraitProfile.fromData(data);
+            source = data;
+            profile = current;
+        }
+        return current;
+    }
+
+    public void invalidate() {
+        profile = null;
+        source = null;
+    }
+
+    @Override
+    public boolean hasCapability(@Nonnull Capability<?> capability, @Nullable EnumFacing facing) {
+        return capability == CAPABILITY;
+    }
+
+    @Nullable
+    @Override
+    public <T> T getCapability(@Nonnull Capability<T> capability, @Nullable EnumFacing facing) {
+        return capability == CAPABILITY ? CAPABILITY.cast(this) : null;
+    }
+
+    // Nothing to save, as the trait tag on the stack is already saved with it
+    public static class Storage implements Capability.IStorage<TraitHolder> {
+        @Nullable
+        @Override
+        public NBTBase writeNBT(Capability<TraitHolder> capability, TraitHolder instance, EnumFacing side) {
+            return null;
+        }
+
+        @Override
+        public void readNBT(Capability<TraitHolder> capability, TraitHolder instance, EnumFacing side, NBTBase nbt) {
+            // NO-OP
+        }
+    }
+}
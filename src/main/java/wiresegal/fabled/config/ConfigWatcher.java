@@ -0,0 +1,106 @@
+package wiresegal.fabled.config;
+
+import net.minecraftforge.fml.common.FMLLog;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reloads the config file when it's edited.
+ */
+public final class ConfigWatcher {
+    // How long the file has to go without changes before it's read, so a save in progress isn't picked up half-written
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private static final AtomicReference<ModConfig.LoadedConfig> PENDING = new AtomicReference<>();
+
+    // The file as it was last written or applied by us, so our own saves don't trigger a reload
+    // Compared by content, as an edit can keep the length and land within the file system's timestamp resolution
+    private static volatile byte[] lastSeenHash = null;
+
+    private static WatchService service = null;
+
+    /**
+     * @param hash A SHA-256 of the file as it was written, from {@link TraitBundle#hashFile}.
+     */
+    public static void markSeen(@Nullable byte[] hash) {
+        lastSeenHash = hash;
+    }
+
+    public static synchronized void start(@Nonnull File file) {
+        if (service != null)
+            return;
+
+        WatchService watching;
+        try {
+            watching = FileSystems.getDefault().newWatchService();
+            file.getAbsoluteFile().getParentFile().toPath().register(watching,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            FMLLog.log.warn("Couldn't watch config file {} for changes, it will only reload on restart.", file.getName(), e);
+            return;
+        }
+
+        service = watching;
+        Thread thread = new Thread(() -> watch(watching, file), "Fabled Works Config Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized void stop() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // NO-OP
+            }
+            service = null;
+        }
+        PENDING.set(null);
+    }
+
+    /**
+     * Makes the most recently loaded config live, if there is one. Called on the server thread between ticks.
+     */
+    public static void applyPending() {
+        ModConfig.LoadedConfig loaded = PENDING.getAndSet(null);
+        if (loaded != null) {
+            ModConfig.apply(loaded);
+            FMLLog.log.info("Reloaded Fabled Works config.");
+        }
+    }
+
+    private static void watch(@Nonnull WatchService watching, @Nonnull File file) {
+        String name = file.getName();
+        try {
+            while (true) {
+                WatchKey key = watching.take();
+                boolean changed = false;
+
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        if (context instanceof Path && ((Path) context).getFileName().toString().equals(name))
+                            changed = true;
+                    }
+                    key.reset();
+                    key = watching.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (changed && !Arrays.equals(TraitBundle.hashFile(file), lastSeenHash)) {
+                    ModConfig.LoadedConfig loaded = ModConfig.loadInBackground();
+                    if (loaded != null)
+                        PENDING.set(loaded);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped along with the server
+        }
+    }
+}
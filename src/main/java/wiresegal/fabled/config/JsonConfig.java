@@ -1,24 +1,32 @@
 package wiresegal.fabled.config;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.gson.*;
 import com.google.gson.internal.Streams;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import net.minecraftforge.fml.common.FMLLog;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
@@ -28,7 +36,15 @@ import java.util.function.Predicate;
 public class JsonConfig {
     private final JsonObject configData;
 
-    private static JsonObject loadFromFile(File file) {
+    @Nullable
+    private final StreamedJson streamed;
+    @Nonnull
+    private final String path;
+    // Shared by every category of the same file
+    @Nonnull
+    private final Dirty dirty;
+
+    private static JsonObject loadFromFile(File file, @Nullable StreamedJson streamed) {
         JsonElement data = new JsonObject();
 
         if (!file.exists())
@@ -40,18 +56,13 @@ public class JsonConfig {
             }
         else {
             try {
-                data = new JsonParser().parse(new FileReader(file));
+                data = parse(file, streamed);
             } catch (IOException io) {
                 // Couldn't read, it's fine, just pass over
 
             } catch (Throwable e) {
-                File fileBak = new File(file.getAbsolutePath() + "_" +
-                        new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".errored");
-                FMLLog.log.fatal("An exception occurred while loading config file {}. This file will be renamed to {}" +
-                        " and a new config file will be generated.", file.getName(), fileBak.getName(), e);
-
-                if (file.renameTo(fileBak))
-                    data = loadFromFile(file);
+                if (setAside(file, e))
+                    data = loadFromFile(file, streamed);
             }
         }
 
@@ -61,16 +72,134 @@ public class JsonConfig {
         return data.getAsJsonObject();
     }
 
+    /**
+     * Renames a config file that couldn't be loaded out of the way, so that a new one is generated in its place.
+     * @return Whether the file was moved.
+     */
+    public static boolean setAside(@Nonnull File file, @Nonnull Throwable cause) {
+        File fileBak = new File(file.getAbsolutePath() + "_" +
+                new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".errored");
+        FMLLog.log.fatal("An exception occurred while loading config file {}. This file will be renamed to {}" +
+                " and a new config file will be generated.", file.getName(), fileBak.getName(), cause);
+
+        return file.renameTo(fileBak);
+    }
+
+    private static JsonElement parse(File file, @Nullable StreamedJson streamed) throws IOException {
+        if (streamed == null) {
+            try (Reader in = StreamedJson.open(file)) {
+                return parse(new JsonReader(in), null);
+            }
+        }
+
+        // Hashed as it's read, so the hash is of exactly what was parsed, even if the file changes right after
+        try (HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), Files.newInputStream(file.toPath()));
+             Reader in = StreamedJson.open(hashing)) {
+            JsonElement element = parse(new JsonReader(in), streamed);
+            streamed.setSourceHash(hashing.hash().asBytes());
+            return element;
+        }
+    }
+
+    private static JsonElement parse(JsonReader reader, @Nullable StreamedJson streamed) throws IOException {
+        reader.setLenient(true);
+        try {
+            JsonElement element;
+            if (streamed == null)
+                element = Streams.parse(reader);
+            else {
+                streamed.clear();
+                boolean started = false;
+                try {
+                    reader.peek();
+                    started = true;
+                    element = streamed.read(reader, "");
+                } catch (EOFException e) {
+                    // The same as the tree parser: an empty file is fine, a cut-off one is not
+                    if (!started)
+                        return JsonNull.INSTANCE;
+                    throw new JsonSyntaxException(e);
+                }
+            }
+
+            // As JsonParser does, so trailing garbage isn't silently ignored
+            if (!element.isJsonNull() && reader.peek() != JsonToken.END_DOCUMENT)
+                throw new JsonSyntaxException("Did not consume the entire document.");
+            return element;
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (JsonIOException e) {
+            throw unwrap(e);
+        }
+    }
+
     public JsonConfig(JsonObject configData) {
+        this(configData, null, "");
+    }
+
+    private JsonConfig(JsonObject configData, @Nullable StreamedJson streamed, @Nonnull String path) {
+        this(configData, streamed, path, new Dirty());
+    }
+
+    private JsonConfig(JsonObject configData, @Nullable StreamedJson streamed, @Nonnull String path, @Nonnull Dirty dirty) {
         this.configData = configData;
+        this.streamed = streamed;
+        this.path = path;
+        this.dirty = dirty;
     }
 
     public JsonConfig(File file) {
-        this(loadFromFile(file));
+        this(loadFromFile(file, null));
+    }
+
+    /**
+     * @param streamedKeys Dotted paths of arrays to leave on disk, to be read back with {@link #stream}.
+     */
+    public JsonConfig(File file, String... streamedKeys) {
+        this(file, new StreamedJson(file, Sets.newHashSet(streamedKeys)));
+    }
+
+    private JsonConfig(File file, @Nonnull StreamedJson streamed) {
+        this(loadFromFile(file, streamed), streamed, "");
+    }
+
+    /**
+     * As the constructor, but failing instead of setting aside a file that can't be parsed.
+     */
+    @Nonnull
+    public static JsonConfig readStrictly(File file, String... streamedKeys) throws IOException {
+        StreamedJson streamed = new StreamedJson(file, Sets.newHashSet(streamedKeys));
+        JsonElement data = parse(file, streamed);
+        return new JsonConfig(data.isJsonObject() ? data.getAsJsonObject() : new JsonObject(), streamed, "");
+    }
+
+    /**
+     * @return A SHA-256 of the file as it was parsed, or null if nothing was read from it.
+     */
+    @Nullable
+    public byte[] getSourceHash() {
+        return streamed == null ? null : streamed.getSourceHash();
     }
 
     private void comment(@Nonnull JsonElement setTo) {
-        configData.add("_comment", setTo);
+        if (!setTo.equals(configData.get("_comment"))) {
+            configData.add("_comment", setTo);
+            markDirty();
+        }
+    }
+
+    /**
+     * @return Whether anything has been added or replaced since the file was loaded or last saved.
+     */
+    public boolean isDirty() {
+        return dirty.dirty;
+    }
+
+    /**
+     * For changes made directly to the objects this config hands out.
+     */
+    public void markDirty() {
+        dirty.dirty = true;
     }
 
     public void comment(@Nonnull String title, @Nonnull String... comments) {
@@ -106,6 +235,7 @@ public class JsonConfig {
                 JsonObject previous = currentObject;
                 currentObject = new JsonObject();
                 previous.add(k, currentObject);
+                markDirty();
             } else
                 currentObject = currentObject.getAsJsonObject(k);
         }
@@ -116,6 +246,7 @@ public class JsonConfig {
 
         if (valuePresent == null || !checkType.test(valuePresent)) {
             currentObject.add(finalKey, defaultValue);
+            markDirty();
             return defaultValue;
         }
 
@@ -124,7 +255,48 @@ public class JsonConfig {
 
     @Nonnull
     public JsonConfig category(@Nonnull String key) {
-        return new JsonConfig(get(key, new JsonObject()));
+        return new JsonConfig(get(key, new JsonObject()), streamed, path + key + ".", dirty);
+    }
+
+    /**
+     * @return Whether the key holds an array that was left on disk when the file was loaded.
+     */
+    public boolean isStreamed(@Nonnull String key) {
+        return streamed != null && streamed.isPresent(path + key) && !configData.has(key);
+    }
+
+    /**
+     * Reads a streamed array back from disk, handing over each element as soon as it has been read.
+     * @return Whether the array was there to read.
+     * @throws JsonParseException If the array isn't valid JSON, so only part of it was handed over.
+     * @throws IOException If the file couldn't be read, which says nothing about its contents.
+     */
+    public boolean stream(@Nonnull String key, @Nonnull Consumer<JsonElement> action) throws IOException {
+        if (streamed == null || !isStreamed(key))
+            return false;
+
+        try (Reader in = StreamedJson.open(streamed.getSource())) {
+            JsonReader reader = new JsonReader(in);
+            reader.setLenient(true);
+            if (!StreamedJson.seek(reader, path + key) || reader.peek() != JsonToken.BEGIN_ARRAY)
+                throw new IOException("Config file " + streamed.getSource().getName() + " changed while " + path + key + " was being read.");
+
+            reader.beginArray();
+            while (reader.hasNext())
+                action.accept(Streams.parse(reader));
+            reader.endArray();
+            return true;
+        } catch (MalformedJsonException | EOFException e) {
+            throw new JsonSyntaxException(e);
+        } catch (JsonIOException e) {
+            throw unwrap(e);
+        }
+    }
+
+    // Streams.parse hides read failures in a JsonParseException, which would have them taken for a broken file
+    @Nonnull
+    private static IOException unwrap(@Nonnull JsonIOException e) {
+        return e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
     }
 
     @Nonnull
@@ -225,15 +397,84 @@ public class JsonConfig {
         return el.getAsDouble();
     }
 
-    public void save(File file) {
+    @Override
+    public String toString() {
+        return configData.toString();
+    }
+
+    /**
+     * Writes the config out, if anything changed since it was read or if the file is missing.
+     * The new file is written alongside the old one and moved over it, so a crash never leaves half a file behind.
+     */
+    /**
+     * @return Whether saving the config to the file would write anything.
+     */
+    public boolean needsSave(File file) {
+        return dirty.dirty || !file.isFile();
+    }
+
+    /**
+     * @return Whether the file was written.
+     */
+    public boolean save(File file) {
+        if (!needsSave(file))
+            return false;
+
+        // Streamed arrays are copied from the file being replaced, so the new one is written alongside it first
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
         try {
-            JsonWriter jsonWriter = new JsonWriter(new FileWriter(file));
-            jsonWriter.setSerializeNulls(true);
-            jsonWriter.setIndent("\t");
-            Streams.write(configData, jsonWriter);
-            jsonWriter.close();
+            try (JsonWriter jsonWriter = new JsonWriter(new BufferedWriter(Channels.newWriter(FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                    StandardCharsets.UTF_8.newEncoder(), -1)))) {
+                jsonWriter.setSerializeNulls(true);
+                jsonWriter.setIndent("\t");
+                if (streamed == null)
+                    Streams.write(configData, jsonWriter);
+                else
+                    write(jsonWriter, configData, path);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty.dirty = false;
+            return true;
         } catch (IOException e) {
-            // NO-OP
+            return false;
         }
     }
+
+    private void write(@Nonnull JsonWriter writer, @Nonnull JsonObject object, @Nonnull String objectPath) throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            writer.name(entry.getKey());
+            if (entry.getValue().isJsonObject())
+                write(writer, entry.getValue().getAsJsonObject(), objectPath + entry.getKey() + ".");
+            else
+                Streams.write(entry.getValue(), writer);
+        }
+
+        if (streamed != null) {
+            for (String name : streamed.presentIn(objectPath)) {
+                if (object.has(name))
+                    continue;
+
+                writer.name(name);
+                try (Reader in = StreamedJson.open(streamed.getSource())) {
+                    JsonReader reader = new JsonReader(in);
+                    reader.setLenient(true);
+                    if (StreamedJson.seek(reader, objectPath + name))
+                        StreamedJson.copy(reader, writer);
+                    else
+                        writer.nullValue();
+                }
+            }
+        }
+        writer.endObject();
+    }
+
+    private static class Dirty {
+        private boolean dirty = false;
+    }
 }
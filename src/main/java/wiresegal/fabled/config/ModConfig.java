@@ -1,22 +1,38 @@
 package wiresegal.fabled.config;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import net.minecraft.entity.SharedMonsterAttributes;
 import net.minecraft.inventory.EntityEquipmentSlot;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.FMLLog;
 import wiresegal.fabled.EnumTraitLevel;
 import wiresegal.fabled.TraitGenerator;
 import wiresegal.fabled.TraitManager;
+import wiresegal.fabled.TraitPoolCache;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
 
 /**
@@ -24,7 +40,11 @@ import java.util.function.Predicate;
  * Created at 7:59 PM on 4/15/18.
  */
 public class ModConfig {
-    public static Predicate<Item> canReceiveTraits = ModConfig::canItemHaveTraits;
+    public static Predicate<Item> canReceiveTraits = ModConfig::isEligible;
+
+    // Held by item rather than registry ID, as IDs are remapped when a world's registry snapshot is loaded.
+    // Swapped whole when the whitelist is reloaded, which can happen off the server thread.
+    private static volatile Set<Item> eligibleItems = ImmutableSet.of();
 
     public static boolean traitsFromLootOnly;
 
@@ -34,8 +54,26 @@ public class ModConfig {
     public static int weightOfEpic;
     public static int weightOfLegendary;
 
+    public static int rollsPerTick;
+    public static double rollTimeBudget;
+
+    public static int commandCooldown;
+
+    public static boolean reloadOnChange;
+
     private static File configFile;
 
+    private static final ExecutorService BUNDLE_WRITER = Executors.newSingleThreadExecutor((task) -> {
+        Thread thread = new Thread(task, "Fabled Works Trait Bundle Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String TRAITS_KEY = "traits.Traits";
+
+    private static final String POOL_CACHE_NAME = "fabledworks_pool.bin";
+    private static final String BUNDLE_NAME = "fabledworks_traits.bin";
+
     public static void injectConfigFile(File recommended) {
         String oldName = recommended.getName();
         String newName = oldName.substring(0, oldName.lastIndexOf('.')) + ".json";
@@ -44,15 +82,129 @@ public class ModConfig {
 
     public static void init() {
         if (configFile.getParentFile().exists() || configFile.getParentFile().mkdirs()) {
-            JsonConfig config = new JsonConfig(configFile);
-            config.comment("Config for Fabled Works");
-            generalSection(config.category("general"));
-            whitelistSection(config.category("whitelist"));
-            traitSection(config.category("traits"));
-            config.save(configFile);
+            // The trait list can be huge, so it's read one trait at a time instead of held in memory
+            try {
+                LoadedConfig loaded;
+                try {
+                    loaded = load(configFile.exists() ? JsonConfig.readStrictly(configFile, TRAITS_KEY) : new JsonConfig(configFile, TRAITS_KEY));
+                } catch (JsonParseException e) {
+                    // A trait list that breaks off partway is treated the same as a file that can't be parsed at all
+                    if (!JsonConfig.setAside(configFile, e))
+                        throw e;
+                    loaded = load(new JsonConfig(configFile, TRAITS_KEY));
+                }
+                apply(loaded);
+            } catch (IOException e) {
+                // Not the file's fault, so it's left alone rather than replaced with the defaults
+                throw new IllegalStateException("Couldn't read config file " + configFile.getName() + ".", e);
+            }
         }
     }
 
+    @Nullable
+    public static File getConfigFile() {
+        return configFile;
+    }
+
+    @Nonnull
+    private static File getBundleFile() {
+        return new File(configFile.getParentFile(), BUNDLE_NAME);
+    }
+
+    /**
+     * Reads the config without touching anything live, so it can be done on any thread.
+     * @return The loaded config, or null if the file is mid-edit or otherwise can't be parsed.
+     */
+    @Nullable
+    public static LoadedConfig loadInBackground() {
+        try {
+            return load(JsonConfig.readStrictly(configFile, TRAITS_KEY));
+        } catch (IOException | JsonParseException e) {
+            FMLLog.log.error("Couldn't reload config file {}, keeping the current config.", configFile.getName(), e);
+            return null;
+        }
+    }
+
+    @Nonnull
+    private static LoadedConfig load(@Nonnull JsonConfig config) throws IOException {
+        byte[] fileHash = config.getSourceHash();
+        TraitBundle bundle = fileHash == null ? null : TraitBundle.read(getBundleFile(), fileHash);
+
+        config.comment("Config for Fabled Works");
+        // Made up front, so the sections keep their order in the file
+        config.category("general");
+        config.category("whitelist");
+
+        List<Trait> traits = new ArrayList<>();
+        JsonConfig traitCategory = config.category("traits");
+        byte[] traitsHash = traitSection(traitCategory, traits, bundle);
+
+        long[][] conflicts = bundle != null && traitCategory.isStreamed("Traits") ? bundle.getConflicts() : null;
+        return new LoadedConfig(config, traits, traitsHash, conflicts, fileHash);
+    }
+
+    /**
+     * Makes a loaded config live. Has to happen on the main thread, outside of a tick.
+     */
+    public static void apply(@Nonnull LoadedConfig loaded) {
+        JsonConfig config = loaded.config;
+        JsonConfig general = config.category("general");
+        generalSection(general);
+        whitelistSection(config.category("whitelist"));
+
+        TraitManager.purgeAllTraits();
+        TraitManager.registerTraits(loaded.traits, loaded.conflicts);
+
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        if (server != null)
+            TraitManager.compileCommands(server);
+
+        // Only a save that writes has to check the file wasn't edited again since it was read.
+        // If it was, leave it be, so the watcher picks the newer edit up.
+        if (!config.needsSave(configFile) || loaded.fileHash == null ||
+                Arrays.equals(TraitBundle.hashFile(configFile), loaded.fileHash)) {
+            byte[] savedHash = config.save(configFile) ? TraitBundle.hashFile(configFile) : loaded.fileHash;
+            ConfigWatcher.markSeen(savedHash);
+
+            // Keyed by the file as it was saved, so the next boot can skip compiling the traits
+            if (savedHash != null && (loaded.conflicts == null || !Arrays.equals(savedHash, loaded.fileHash))) {
+                File bundleFile = getBundleFile();
+                BUNDLE_WRITER.execute(() -> TraitBundle.write(bundleFile, savedHash, loaded.traits, loaded.traitsHash));
+            }
+        }
+
+        TraitGenerator.rebuildTraitPool(new File(configFile.getParentFile(), POOL_CACHE_NAME),
+                TraitPoolCache.key(general, loaded.traitsHash));
+    }
+
+    public static final class LoadedConfig {
+        @Nonnull
+        private final JsonConfig config;
+        @Nonnull
+        private final List<Trait> traits;
+        @Nonnull
+        private final byte[] traitsHash;
+        // Only set when the traits came from the bundle
+        @Nullable
+        private final long[][] conflicts;
+        // Null if the file was missing or couldn't be read
+        @Nullable
+        private final byte[] fileHash;
+
+        private LoadedConfig(@Nonnull JsonConfig config, @Nonnull List<Trait> traits, @Nonnull byte[] traitsHash,
+                             @Nullable long[][] conflicts, @Nullable byte[] fileHash) {
+            this.config = config;
+            this.traits = traits;
+            this.traitsHash = traitsHash;
+            this.conflicts = conflicts;
+            this.fileHash = fileHash;
+        }
+    }
+
+
+    public static boolean isEligible(@Nonnull Item item) {
+        return eligibleItems.contains(item);
+    }
 
     private static boolean canItemHaveTraits(Item item) {
         ItemStack stack = new ItemStack(item);
@@ -71,6 +223,21 @@ public class ModConfig {
         weightOfRare = category.get("Weights." + EnumTraitLevel.RARE.getJsonKey(), 75);
         weightOfEpic = category.get("Weights." + EnumTraitLevel.EPIC.getJsonKey(), 50);
         weightOfLegendary = category.get("Weights." + EnumTraitLevel.LEGENDARY.getJsonKey(), 25);
+
+        rollsPerTick = category.get("Item Rolls." + "Most rolls per tick", 64);
+        if (rollsPerTick < 1) {
+            FMLLog.log.warn("Item Rolls.Most rolls per tick is {}, but has to be at least 1. Using 64 instead.", rollsPerTick);
+            rollsPerTick = 64;
+        }
+        rollTimeBudget = category.get("Item Rolls." + "Milliseconds per tick", 2.0);
+        if (rollTimeBudget <= 0) {
+            FMLLog.log.warn("Item Rolls.Milliseconds per tick is {}, but has to be more than 0. Using 2 instead.", rollTimeBudget);
+            rollTimeBudget = 2.0;
+        }
+
+        commandCooldown = category.get("Hit Commands." + "Ticks between runs", 0);
+
+        reloadOnChange = category.get("Reload while the server is running", true);
     }
 
     private static void whitelistSection(JsonConfig category) {
@@ -78,9 +245,11 @@ public class ModConfig {
                 "You can explicitly define the whitelisted items by turning off `Allow Any`.",
                 "Otherwise, the default behavior will be used, only applying to items that can receive enchantments.");
 
+        ImmutableSet.Builder<Item> defaultItems = ImmutableSet.builder();
         JsonArray defaultWhitelist = new JsonArray();
         for (Item item : Item.REGISTRY) {
             if (canItemHaveTraits(item)) {
+                defaultItems.add(item);
                 ResourceLocation name = Item.REGISTRY.getNameForObject(item);
                 if (name != null)
                     defaultWhitelist.add(name.toString());
@@ -91,9 +260,9 @@ public class ModConfig {
         JsonArray whitelistedItems = category.get("Whitelist", defaultWhitelist);
 
         if (allowAny)
-            canReceiveTraits = ModConfig::canItemHaveTraits;
+            eligibleItems = defaultItems.build();
         else {
-            Set<Item> allowed = Sets.newHashSet();
+            ImmutableSet.Builder<Item> allowed = ImmutableSet.builder();
             for (JsonElement el : whitelistedItems) {
                 if (el.isJsonPrimitive()) {
                     ResourceLocation location = new ResourceLocation(el.getAsString());
@@ -103,30 +272,56 @@ public class ModConfig {
                 }
             }
 
-            canReceiveTraits = ImmutableSet.copyOf(allowed)::contains;
+            eligibleItems = allowed.build();
         }
+
+        canReceiveTraits = ModConfig::isEligible;
     }
 
 
-    private static void traitSection(JsonConfig category) {
+    /**
+     * Compiles the traits without registering them, or takes them already compiled from the bundle if it was made from this file.
+     * @return A hash of the trait list, which stands in for it when keying the pool cache, as the list itself is never held in memory.
+     */
+    private static byte[] traitSection(JsonConfig category, List<Trait> compiled, @Nullable TraitBundle bundle) throws IOException {
         category.comment("traits",
                 "Custom traits can be added as you want.",
                 "Examples of all usable properties are provided below.");
 
-        JsonArray defaultTraits = new JsonParser().parse(new InputStreamReader(
-                ModConfig.class.getResourceAsStream("/assets/fabledworks/default_traits.json"))).getAsJsonArray();
-
-        JsonArray traits = category.get("Traits", defaultTraits);
+        // The bundle was keyed by the whole file, so if the list is there at all, it's the one the bundle came from
+        if (bundle != null && category.isStreamed("Traits")) {
+            compiled.addAll(bundle.getTraits());
+            return bundle.getTraitsHash();
+        }
 
-        TraitManager.purgeAllTraits();
-        TraitGenerator.invalidateTraitPool();
+        Hasher hasher = Hashing.sha256().newHasher();
 
-        for (JsonElement traitEl : traits) {
-            if (traitEl.isJsonObject()) {
-                Trait trait = Trait.loadFromJson(traitEl.getAsJsonObject());
-                if (trait != null)
-                    TraitManager.registerTrait(trait);
+        if (category.isStreamed("Traits"))
+            category.stream("Traits", (traitEl) -> loadTrait(traitEl, hasher, compiled));
+        else {
+            JsonArray defaultTraits;
+            try (Reader reader = new InputStreamReader(
+                    ModConfig.class.getResourceAsStream("/assets/fabledworks/default_traits.json"), StandardCharsets.UTF_8)) {
+                defaultTraits = new JsonParser().parse(reader).getAsJsonArray();
+            } catch (IOException e) {
+                defaultTraits = new JsonArray();
             }
+
+            JsonArray traits = category.get("Traits", defaultTraits);
+
+            for (JsonElement traitEl : traits)
+                loadTrait(traitEl, hasher, compiled);
+        }
+
+        return hasher.hash().asBytes();
+    }
+
+    private static void loadTrait(JsonElement traitEl, Hasher hasher, List<Trait> compiled) {
+        hasher.putString(traitEl.toString(), StandardCharsets.UTF_8);
+        if (traitEl.isJsonObject()) {
+            Trait trait = Trait.loadFromJson(traitEl.getAsJsonObject());
+            if (trait != null)
+                compiled.add(trait);
         }
     }
 }
@@ -0,0 +1,196 @@
+package wiresegal.fabled.config;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.internal.Streams;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Arrays in a config file that are left on disk instead of being read into the tree.
+ */
+final class StreamedJson {
+    @Nonnull
+    private final File source;
+    // Dotted paths that may be streamed, and the ones the file actually had
+    @Nonnull
+    private final Set<String> wanted;
+    @Nonnull
+    private final Set<String> present = new HashSet<>();
+    // A SHA-256 of the bytes the tree was read from
+    @Nullable
+    private byte[] sourceHash = null;
+
+    StreamedJson(@Nonnull File source, @Nonnull Set<String> wanted) {
+        this.source = source;
+        this.wanted = wanted;
+    }
+
+    @Nonnull
+    File getSource() {
+        return source;
+    }
+
+    boolean isPresent(@Nonnull String path) {
+        return present.contains(path);
+    }
+
+    /**
+     * @return The names of the streamed arrays directly inside the object at the path.
+     */
+    @Nonnull
+    List<String> presentIn(@Nonnull String objectPath) {
+        List<String> names = new ArrayList<>();
+        for (String path : present) {
+            if (path.startsWith(objectPath) && path.indexOf('.', objectPath.length()) < 0)
+                names.add(path.substring(objectPath.length()));
+        }
+        return names;
+    }
+
+    @Nullable
+    byte[] getSourceHash() {
+        return sourceHash;
+    }
+
+    void setSourceHash(@Nullable byte[] sourceHash) {
+        this.sourceHash = sourceHash;
+    }
+
+    void clear() {
+        present.clear();
+        sourceHash = null;
+    }
+
+    @Nonnull
+    static Reader open(@Nonnull File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new BufferedReader(Channels.newReader(channel, decoder(), -1));
+    }
+
+    @Nonnull
+    static Reader open(@Nonnull InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, decoder()));
+    }
+
+    @Nonnull
+    private static CharsetDecoder decoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Reads a value into a tree, skipping over any wanted arrays.
+     */
+    @Nonnull
+    JsonElement read(@Nonnull JsonReader reader, @Nonnull String path) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT)
+            return Streams.parse(reader);
+
+        JsonObject object = new JsonObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            String childPath = path + name;
+            if (wanted.contains(childPath) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                present.add(childPath);
+            } else
+                object.add(name, read(reader, childPath + "."));
+        }
+        reader.endObject();
+
+        return object;
+    }
+
+    /**
+     * Moves the reader onto the value at the path.
+     * @return Whether the value was found.
+     */
+    static boolean seek(@Nonnull JsonReader reader, @Nonnull String path) throws IOException {
+        for (String key : path.split("\\.")) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT)
+                return false;
+
+            reader.beginObject();
+            boolean found = false;
+            while (!found && reader.hasNext()) {
+                if (reader.nextName().equals(key))
+                    found = true;
+                else
+                    reader.skipValue();
+            }
+
+            if (!found)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies one value across, without holding more than a token of it at a time.
+     */
+    static void copy(@Nonnull JsonReader in, @Nonnull JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case NUMBER:
+                    out.value(new LazilyParsedNumber(in.nextString()));
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected end of document at " + in.getPath());
+            }
+        } while (depth > 0);
+    }
+}
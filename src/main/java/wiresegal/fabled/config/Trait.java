@@ -1,13 +1,12 @@
 package wiresegal.fabled.config;
 
 import com.google.common.collect.*;
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import net.minecraft.client.resources.I18n;
-import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.entity.ai.attributes.AttributeModifier;
 import net.minecraft.inventory.EntityEquipmentSlot;
-import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
@@ -16,6 +15,7 @@ import wiresegal.fabled.TraitManager;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
@@ -41,12 +41,20 @@ public class Trait {
 
     private final int weight;
 
+    private long nbtId;
+
+    private int id = -1;
+
+    // Leaves room for the level in the low three bits of a stored entry
+    public static final long NBT_ID_MASK = -1L >>> 3;
+
     public Trait(@Nonnull List<String> conflicts, @Nonnull String location, @Nonnull String defaultName, @Nonnull Map<EnumTraitLevel, TraitAtLevel> levels, int weight) {
         this.conflicts = conflicts;
         this.location = location;
         this.defaultName = defaultName;
         this.levels = levels;
         this.weight = weight;
+        this.nbtId = getNBTIdFor(getNBTKey());
     }
 
     private static JsonObject getSubObject(String key, JsonObject obj) {
@@ -162,7 +170,13 @@ public class Trait {
     }
 
     public boolean canBeAppliedWith(@Nonnull Trait other) {
-        return other != this && !conflicts.contains(other.location) && !other.conflicts.contains(location);
+        if (id < 0 || other.id < 0)
+            return other != this && !listsConflictWith(other) && !other.listsConflictWith(this);
+        return !TraitManager.conflicts(id, other.id);
+    }
+
+    public boolean listsConflictWith(@Nonnull Trait other) {
+        return conflicts.contains(other.location);
     }
 
     public boolean canBeAppliedWith(@Nonnull String other) {
@@ -184,15 +198,59 @@ public class Trait {
         return defaultName;
     }
 
+    @Nonnull
+    String getDefaultName() {
+        return defaultName;
+    }
+
+    @Nonnull
+    List<String> getConflicts() {
+        return conflicts;
+    }
+
     @Nonnull
     public String getNBTKey() {
         return getName();
     }
 
+    /**
+     * Stable ID stored on items, taken from the name so it survives config changes.
+     * Only differs from {@link #getNBTIdFor} if another registered trait's name hashes the same.
+     */
+    public long getNBTId() {
+        return nbtId;
+    }
+
+    public void setNBTId(long nbtId) {
+        this.nbtId = nbtId;
+    }
+
+    public static long getNBTIdFor(@Nonnull String nbtKey) {
+        return Hashing.murmur3_128().hashString(nbtKey, StandardCharsets.UTF_8).asLong() & NBT_ID_MASK;
+    }
+
+    /**
+     * The ID stacks were written with before IDs were widened, which is too narrow to be unique.
+     */
+    public static int getLegacyNBTIdFor(@Nonnull String nbtKey) {
+        return nbtKey.hashCode() & 0x1FFFFFFF;
+    }
+
     public int getWeight() {
         return weight;
     }
 
+    /**
+     * Dense registry ID, or -1 if this trait isn't registered.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public boolean isInCompound(@Nonnull NBTTagCompound compound) {
         return compound.hasKey(getNBTKey());
     }
@@ -203,12 +261,7 @@ public class Trait {
     }
 
     @Nullable
-    private TraitAtLevel levelOn(@Nonnull ItemStack stack) {
-        return traitAtLevel(TraitManager.getLevel(stack, this));
-    }
-
-    @Nullable
-    private TraitAtLevel traitAtLevel(@Nonnull EnumTraitLevel level) {
+    public TraitAtLevel traitAtLevel(@Nonnull EnumTraitLevel level) {
         if (level == EnumTraitLevel.NULL) return null;
 
         return levels.get(level);
@@ -223,40 +276,4 @@ public class Trait {
         else if (!willRemove)
             compound.setString(getNBTKey(), level.getName());
     }
-
-
-
-
-    public void applyAttributes(@Nonnull ItemStack stack, @Nonnull Multimap<String, AttributeModifier> modifiers, @Nonnull EntityEquipmentSlot slot) {
-        TraitAtLevel atLevel = levelOn(stack);
-        if (atLevel != null)
-            atLevel.applyAttributes(modifiers, slot);
-    }
-
-    public double getKnockbackMultiplier(@Nonnull ItemStack stack, double current) {
-        TraitAtLevel atLevel = levelOn(stack);
-        if (atLevel != null)
-            return atLevel.getKnockbackMultiplier(current);
-        return current;
-    }
-
-    public double modifyWithPenetrationMultiplier(@Nonnull ItemStack stack, double current) {
-        TraitAtLevel atLevel = levelOn(stack);
-        if (atLevel != null)
-            return atLevel.modifyWithPenetrationMultiplier(current);
-        return current;
-    }
-
-    public double chanceToBreak(@Nonnull ItemStack stack, double current) {
-        TraitAtLevel atLevel = levelOn(stack);
-        if (atLevel != null)
-            return atLevel.chanceToBreak(current);
-        return current;
-    }
-
-    public void hitEntity(@Nonnull ItemStack stack, @Nonnull EntityLivingBase attacker) {
-        TraitAtLevel atLevel = levelOn(stack);
-        if (atLevel != null)
-            atLevel.hitEntity(attacker);
-    }
 }
@@ -1,14 +1,18 @@
 package wiresegal.fabled.config;
 
 import com.google.common.collect.Multimap;
+import net.minecraft.command.ICommandManager;
 import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.entity.ai.attributes.AttributeModifier;
 import net.minecraft.inventory.EntityEquipmentSlot;
 import net.minecraft.server.MinecraftServer;
+import wiresegal.fabled.AttributeMerger;
 import wiresegal.fabled.wrappers.CommandExecutor;
+import wiresegal.fabled.wrappers.CompiledCommand;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.EnumMap;
 import java.util.Map;
 
 /**
@@ -23,15 +27,45 @@ public class TraitAtLevel {
     @Nonnull
     private final Map<EntityEquipmentSlot, Multimap<String, AttributeModifier>> attributes;
 
+    @Nonnull
+    private final Map<EntityEquipmentSlot, AttributeMerger> compiledAttributes;
+
     @Nullable
     private final String command;
 
+    @Nullable
+    private volatile CompiledCommand compiledCommand = null;
+    // The command manager this command was last found missing from, so the lookup isn't retried every hit
+    @Nullable
+    private volatile ICommandManager missingFrom = null;
+
     public TraitAtLevel(double unbreakingChance, double penetrationMultiplier, double knockbackMultiplier, @Nonnull Map<EntityEquipmentSlot, Multimap<String, AttributeModifier>> attributes, @Nullable String command) {
         this.unbreakingChance = unbreakingChance;
         this.penetrationMultiplier = penetrationMultiplier;
         this.knockbackMultiplier = knockbackMultiplier;
         this.attributes = attributes;
         this.command = command;
+
+        this.compiledAttributes = new EnumMap<>(EntityEquipmentSlot.class);
+        for (Map.Entry<EntityEquipmentSlot, Multimap<String, AttributeModifier>> entry : attributes.entrySet())
+            compiledAttributes.put(entry.getKey(), new AttributeMerger(entry.getValue()));
+    }
+
+    double getUnbreakingChance() {
+        return unbreakingChance;
+    }
+
+    double getPenetration() {
+        return penetrationMultiplier;
+    }
+
+    double getKnockback() {
+        return knockbackMultiplier;
+    }
+
+    @Nonnull
+    Map<EntityEquipmentSlot, Multimap<String, AttributeModifier>> getAttributes() {
+        return attributes;
     }
 
     public void applyAttributes(@Nonnull Multimap<String, AttributeModifier> modifiers, @Nonnull EntityEquipmentSlot slot) {
@@ -40,6 +74,12 @@ public class TraitAtLevel {
             modifiers.putAll(mine);
     }
 
+    public void mergeAttributes(@Nonnull AttributeMerger merger, @Nonnull EntityEquipmentSlot slot) {
+        AttributeMerger mine = compiledAttributes.get(slot);
+        if (mine != null)
+            merger.putAll(mine);
+    }
+
     public double getKnockbackMultiplier(double current) {
         return knockbackMultiplier * current;
     }
@@ -58,11 +98,45 @@ public class TraitAtLevel {
         return (1 - unbreakingChance) * current;
     }
 
+    public boolean hasCommand() {
+        return command != null;
+    }
+
+    @Nullable
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Splits the command and looks it up in the manager ahead of time.
+     * @return Whether the command was found, or true if there's no command.
+     */
+    public boolean compileCommand(@Nonnull ICommandManager manager) {
+        if (command == null)
+            return true;
+
+        CompiledCommand compiled = CompiledCommand.compile(manager, command);
+        compiledCommand = compiled;
+        missingFrom = compiled == null ? manager : null;
+        return compiled != null;
+    }
+
     public void hitEntity(@Nonnull EntityLivingBase attacker) {
         if (!attacker.world.isRemote && command != null) {
             MinecraftServer server = attacker.getServer();
-            if (server != null)
-                server.getCommandManager().executeCommand(new CommandExecutor(attacker), command);
+            if (server == null)
+                return;
+
+            ICommandManager manager = server.getCommandManager();
+            CompiledCommand compiled = compiledCommand;
+            if (compiled == null || !compiled.isCompiledFor(manager)) {
+                if (missingFrom == manager || !compileCommand(manager))
+                    return;
+                compiled = compiledCommand;
+            }
+
+            if (compiled != null)
+                compiled.execute(server, CommandExecutor.of(attacker));
         }
     }
 }
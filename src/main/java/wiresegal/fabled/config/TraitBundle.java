@@ -0,0 +1,308 @@
+package wiresegal.fabled.config;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import net.minecraft.entity.ai.attributes.AttributeModifier;
+import net.minecraft.inventory.EntityEquipmentSlot;
+import net.minecraftforge.fml.common.FMLLog;
+import wiresegal.fabled.EnumTraitLevel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * The compiled trait list, kept on disk so it isn't compiled from the config on every boot.
+ */
+public final class TraitBundle {
+    private static final int MAGIC = 0x46575442; // FWTB
+    // Bump whenever Trait.loadFromJson changes what it makes from the same JSON
+    private static final int VERSION = 1;
+
+    private static final EntityEquipmentSlot[] SLOTS = EntityEquipmentSlot.values();
+
+    // The least a trait can take up: name, default name, weight, the two counts, and a flag per level
+    private static final int TRAIT_MIN_BYTES = Integer.BYTES * 5 + EnumTraitLevel.LEVELS.length;
+    // Attribute name, modifier name, operation and amount
+    private static final int ATTRIBUTE_BYTES = Integer.BYTES * 2 + 1 + Double.BYTES;
+
+    @Nonnull
+    private final List<Trait> traits;
+    @Nonnull
+    private final long[][] conflicts;
+    @Nonnull
+    private final byte[] traitsHash;
+
+    private TraitBundle(@Nonnull List<Trait> traits, @Nonnull long[][] conflicts, @Nonnull byte[] traitsHash) {
+        this.traits = traits;
+        this.conflicts = conflicts;
+        this.traitsHash = traitsHash;
+    }
+
+    @Nonnull
+    public List<Trait> getTraits() {
+        return traits;
+    }
+
+    /**
+     * @return One conflict row per trait, in the same form as {@link wiresegal.fabled.TraitManager#conflictRow}.
+     */
+    @Nonnull
+    public long[][] getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * @return The hash of the trait list these traits were compiled from, for keying the pool cache.
+     */
+    @Nonnull
+    public byte[] getTraitsHash() {
+        return traitsHash;
+    }
+
+    /**
+     * @return A SHA-256 of the file's contents, or null if it can't be read.
+     */
+    @Nullable
+    public static byte[] hashFile(@Nonnull File file) {
+        if (!file.isFile())
+            return null;
+
+        try {
+            // Streamed rather than mapped, as a live mapping keeps the file from being replaced on some systems
+            return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).asBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nonnull
+    private static long[][] conflictRows(@Nonnull List<Trait> traits) {
+        int count = traits.size();
+        long[][] rows = new long[count][(count + 63) >>> 6];
+        for (int id = 0; id < count; id++) {
+            rows[id][id >>> 6] |= 1L << id;
+            Trait trait = traits.get(id);
+            for (int other = 0; other < id; other++) {
+                Trait otherTrait = traits.get(other);
+                if (trait.listsConflictWith(otherTrait) || otherTrait.listsConflictWith(trait)) {
+                    rows[id][other >>> 6] |= 1L << other;
+                    rows[other][id >>> 6] |= 1L << id;
+                }
+            }
+        }
+        return rows;
+    }
+
+    public static void write(@Nonnull File file, @Nonnull byte[] key, @Nonnull List<Trait> traits, @Nonnull byte[] traitsHash) {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            // The body goes first, so the string table is complete by the time it's written
+            try (DataOutputStream out = new DataOutputStream(body)) {
+                long[][] rows = conflictRows(traits);
+
+                out.writeInt(traits.size());
+                for (int id = 0; id < traits.size(); id++) {
+                    Trait trait = traits.get(id);
+                    out.writeInt(intern(strings, trait.getName()));
+                    out.writeInt(intern(strings, trait.getDefaultName()));
+                    out.writeInt(trait.getWeight());
+
+                    out.writeInt(trait.getConflicts().size());
+                    for (String conflict : trait.getConflicts())
+                        out.writeInt(intern(strings, conflict));
+
+                    out.writeInt(rows[id].length);
+                    for (long word : rows[id])
+                        out.writeLong(word);
+
+                    for (EnumTraitLevel level : EnumTraitLevel.LEVELS)
+                        writeLevel(out, strings, trait.traitAtLevel(level));
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(traitsHash.length);
+                out.write(traitsHash);
+
+                out.writeInt(strings.size());
+                for (String string : strings.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                body.writeTo(out);
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            FMLLog.log.warn("Couldn't write the compiled traits to {}.", file, e);
+        }
+    }
+
+    private static int intern(@Nonnull Map<String, Integer> strings, @Nullable String string) {
+        if (string == null)
+            return -1;
+        return strings.computeIfAbsent(string, (added) -> strings.size());
+    }
+
+    private static void writeLevel(@Nonnull DataOutput out, @Nonnull Map<String, Integer> strings, @Nullable TraitAtLevel atLevel) throws IOException {
+        out.writeBoolean(atLevel != null);
+        if (atLevel == null)
+            return;
+
+        out.writeDouble(atLevel.getUnbreakingChance());
+        out.writeDouble(atLevel.getPenetration());
+        out.writeDouble(atLevel.getKnockback());
+        out.writeInt(intern(strings, atLevel.getCommand()));
+
+        for (EntityEquipmentSlot slot : SLOTS) {
+            Multimap<String, AttributeModifier> attributes = atLevel.getAttributes().get(slot);
+            Collection<Map.Entry<String, AttributeModifier>> entries = attributes == null ?
+                    Collections.emptyList() : attributes.entries();
+
+            out.writeInt(entries.size());
+            for (Map.Entry<String, AttributeModifier> entry : entries)
+                out.writeInt(intern(strings, entry.getKey()));
+            for (Map.Entry<String, AttributeModifier> entry : entries)
+                out.writeInt(intern(strings, entry.getValue().getName()));
+            for (Map.Entry<String, AttributeModifier> entry : entries)
+                out.writeByte(entry.getValue().getOperation());
+            for (Map.Entry<String, AttributeModifier> entry : entries)
+                out.writeDouble(entry.getValue().getAmount());
+        }
+    }
+
+    /**
+     * @return The traits written by {@link #write}, or null if they were written for a different config file.
+     */
+    @Nullable
+    public static TraitBundle read(@Nonnull File file, @Nonnull byte[] key) {
+        if (!file.isFile())
+            return null;
+
+        try {
+            // Read into memory rather than mapped, as the file is replaced in place when the bundle is written again
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            byte[] storedKey = new byte[readCount(buffer, 1)];
+            buffer.get(storedKey);
+            if (!Arrays.equals(key, storedKey))
+                return null;
+
+            byte[] traitsHash = new byte[readCount(buffer, 1)];
+            buffer.get(traitsHash);
+
+            String[] strings = new String[readCount(buffer, Integer.BYTES)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(buffer, 1)];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int count = readCount(buffer, TRAIT_MIN_BYTES);
+            List<Trait> traits = new ArrayList<>(count);
+            long[][] conflicts = new long[count][];
+            for (int id = 0; id < count; id++) {
+                String name = strings[buffer.getInt()];
+                String defaultName = strings[buffer.getInt()];
+                int weight = buffer.getInt();
+
+                List<String> conflictNames = Lists.newArrayList();
+                for (int i = readCount(buffer, Integer.BYTES); i > 0; i--)
+                    conflictNames.add(strings[buffer.getInt()]);
+
+                conflicts[id] = new long[readCount(buffer, Long.BYTES)];
+                for (int word = 0; word < conflicts[id].length; word++)
+                    conflicts[id][word] = buffer.getLong();
+
+                EnumMap<EnumTraitLevel, TraitAtLevel> levels = new EnumMap<>(EnumTraitLevel.class);
+                for (EnumTraitLevel level : EnumTraitLevel.LEVELS) {
+                    TraitAtLevel atLevel = readLevel(buffer, strings);
+                    if (atLevel != null)
+                        levels.put(level, atLevel);
+                }
+
+                traits.add(new Trait(conflictNames, name, defaultName, levels, weight));
+            }
+
+            return new TraitBundle(traits, conflicts, traitsHash);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            FMLLog.log.warn("Couldn't read the compiled traits at {}, they will be compiled again.", file, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static TraitAtLevel readLevel(@Nonnull ByteBuffer buffer, @Nonnull String[] strings) {
+        if (buffer.get() == 0)
+            return null;
+
+        double unbreakingChance = buffer.getDouble();
+        double penetration = buffer.getDouble();
+        double knockback = buffer.getDouble();
+        int command = buffer.getInt();
+
+        Map<EntityEquipmentSlot, Multimap<String, AttributeModifier>> allAttributes = Maps.newHashMap();
+        for (EntityEquipmentSlot slot : SLOTS) {
+            int size = readCount(buffer, ATTRIBUTE_BYTES);
+            if (size == 0)
+                continue;
+
+            int[] attributeNames = new int[size];
+            int[] modifierNames = new int[size];
+            byte[] operations = new byte[size];
+            double[] amounts = new double[size];
+            buffer.asIntBuffer().get(attributeNames);
+            buffer.position(buffer.position() + size * Integer.BYTES);
+            buffer.asIntBuffer().get(modifierNames);
+            buffer.position(buffer.position() + size * Integer.BYTES);
+            buffer.get(operations);
+            buffer.asDoubleBuffer().get(amounts);
+            buffer.position(buffer.position() + size * Double.BYTES);
+
+            Multimap<String, AttributeModifier> attributes = HashMultimap.create();
+            for (int i = 0; i < size; i++)
+                attributes.put(strings[attributeNames[i]], new AttributeModifier(strings[modifierNames[i]], amounts[i], operations[i]));
+            allAttributes.put(slot, attributes);
+        }
+
+        return new TraitAtLevel(unbreakingChance, penetration, knockback, allAttributes, command < 0 ? null : strings[command]);
+    }
+
+    /**
+     * Reads a count, checking that there's room left for that many entries of the given size,
+     * so a corrupt file fails instead of allocating whatever it says.
+     */
+    private static int readCount(@Nonnull ByteBuffer buffer, int bytesEach) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * bytesEach > buffer.remaining())
+            throw new BufferUnderflowException();
+        return count;
+    }
+}
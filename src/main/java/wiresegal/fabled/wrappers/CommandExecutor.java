@@ -12,17 +12,40 @@ import net.minecraft.world.World;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * @author WireSegal
  * Created at 4:06 PM on 4/15/18.
  */
 public class CommandExecutor implements ICommandSender {
+    // Only ever touched from the server thread
+    private static final Map<EntityLivingBase, CommandExecutor> EXECUTORS = new WeakHashMap<>();
+
+    /**
+     * @return A sender for the entity, reused for as long as the entity is around.
+     */
     @Nonnull
-    private final EntityLivingBase sender;
+    public static CommandExecutor of(@Nonnull EntityLivingBase sender) {
+        return EXECUTORS.computeIfAbsent(sender, CommandExecutor::new);
+    }
+
+    // Weak, so that the cache above doesn't keep the entity alive through its own value
+    @Nonnull
+    private final WeakReference<EntityLivingBase> senderRef;
 
     public CommandExecutor(@Nonnull EntityLivingBase sender) {
-        this.sender = sender;
+        this.senderRef = new WeakReference<>(sender);
+    }
+
+    @Nonnull
+    private EntityLivingBase sender() {
+        EntityLivingBase sender = senderRef.get();
+        if (sender == null)
+            throw new IllegalStateException("Command sender was used after its entity was unloaded");
+        return sender;
     }
 
     @Override
@@ -35,52 +58,52 @@ public class CommandExecutor implements ICommandSender {
     @Nonnull
     @Override
     public String getName() {
-        return sender.getName();
+        return sender().getName();
     }
 
     @Nonnull
     @Override
     public World getEntityWorld() {
-        return sender.world;
+        return sender().world;
     }
 
     @Nullable
     @Override
     public MinecraftServer getServer() {
-        return sender.getServer();
+        return sender().getServer();
     }
 
     @Nonnull
     @Override
     public ITextComponent getDisplayName() {
-        return sender.getDisplayName();
+        return sender().getDisplayName();
     }
 
     @Override
     public void sendMessage(ITextComponent component) {
-        sender.sendMessage(component);
+        sender().sendMessage(component);
     }
 
     @Nonnull
     @Override
     public BlockPos getPosition() {
-        return sender.getPosition();
+        return sender().getPosition();
     }
 
     @Nonnull
     @Override
     public Vec3d getPositionVector() {
-        return sender.getPositionVector();
+        return sender().getPositionVector();
     }
 
     @Nullable
     @Override
     public Entity getCommandSenderEntity() {
-        return sender;
+        return sender();
     }
 
     @Override
     public void setCommandStat(CommandResultStats.Type type, int amount) {
-        sender.setCommandStat(type, amount);
+        sender().setCommandStat(type, amount);
     }
 }
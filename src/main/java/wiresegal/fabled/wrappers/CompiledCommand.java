@@ -0,0 +1,117 @@
+package wiresegal.fabled.wrappers;
+
+import com.google.common.base.Throwables;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.EntitySelector;
+import net.minecraft.command.ICommand;
+import net.minecraft.command.ICommandManager;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentTranslation;
+import net.minecraft.util.text.TextFormatting;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.CommandEvent;
+import net.minecraftforge.fml.common.FMLLog;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * A command string split and looked up once, ahead of time.
+ */
+public final class CompiledCommand {
+    @Nonnull
+    private final ICommandManager manager;
+    @Nonnull
+    private final ICommand command;
+    @Nonnull
+    private final String rawCommand;
+    @Nonnull
+    private final String[] args;
+
+    // Only depends on the arguments, so it can be found up front
+    private final int usernameIndex;
+
+    private CompiledCommand(@Nonnull ICommandManager manager, @Nonnull ICommand command, @Nonnull String rawCommand, @Nonnull String[] args) {
+        this.manager = manager;
+        this.command = command;
+        this.rawCommand = rawCommand;
+        this.args = args;
+
+        int index = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (command.isUsernameIndex(args, i) && EntitySelector.matchesMultiplePlayers(args[i])) {
+                index = i;
+                break;
+            }
+        }
+        this.usernameIndex = index;
+    }
+
+    /**
+     * @return The compiled command, or null if the manager has no command by that name.
+     */
+    @Nullable
+    public static CompiledCommand compile(@Nonnull ICommandManager manager, @Nonnull String rawCommand) {
+        String trimmed = rawCommand.trim();
+        if (trimmed.startsWith("/"))
+            trimmed = trimmed.substring(1);
+
+        String[] split = trimmed.split(" ");
+        ICommand command = manager.getCommands().get(split[0]);
+        if (command == null)
+            return null;
+
+        return new CompiledCommand(manager, command, rawCommand, Arrays.copyOfRange(split, 1, split.length));
+    }
+
+    public boolean isCompiledFor(@Nonnull ICommandManager manager) {
+        return this.manager == manager;
+    }
+
+    /**
+     * Runs the command as the sender. Selectors that can match more than one entity need the manager to run the command
+     * once per match, so those commands are handed to it whole.
+     */
+    public void execute(@Nonnull MinecraftServer server, @Nonnull ICommandSender sender) {
+        if (usernameIndex > -1) {
+            manager.executeCommand(sender, rawCommand);
+            return;
+        }
+
+        try {
+            if (!command.checkPermission(server, sender)) {
+                sendError(sender, new TextComponentTranslation("commands.generic.permission"));
+                return;
+            }
+
+            CommandEvent event = new CommandEvent(command, sender, args.clone());
+            if (MinecraftForge.EVENT_BUS.post(event)) {
+                Throwable exception = event.getException();
+                if (exception instanceof CommandException)
+                    throw (CommandException) exception;
+                if (exception != null) {
+                    Throwables.throwIfUnchecked(exception);
+                    throw new RuntimeException(exception);
+                }
+                return;
+            }
+
+            String[] params = event.getParameters() == null ? args.clone() : event.getParameters();
+            try {
+                command.execute(server, sender, params);
+            } catch (RuntimeException e) {
+                sendError(sender, new TextComponentTranslation("commands.generic.exception"));
+                FMLLog.log.warn("Couldn't process command: {}", rawCommand, e);
+            }
+        } catch (CommandException e) {
+            sendError(sender, new TextComponentTranslation(e.getMessage(), e.getErrorObjects()));
+        }
+    }
+
+    private static void sendError(@Nonnull ICommandSender sender, @Nonnull TextComponentTranslation message) {
+        message.getStyle().setColor(TextFormatting.RED);
+        sender.sendMessage(message);
+    }
+}